@@ -0,0 +1,208 @@
+package ch.psi.imagej.hdf5;
+
+import java.util.Arrays;
+
+/**
+ * Binning (averaging of blocks of pixels) and the inverse nearest neighbour expansion of
+ * ImageJ pixel arrays (byte, short or float). Byte and short pixels are unsigned as in ImageJ.
+ *
+ * Blocks spanning several planes are binned by accumulating the planes one after the other
+ * (see accumulate and reduce), so that the planes of a block never need to be held at once.
+ */
+public class Binning {
+
+	/** Mean of the pixels of a block */
+	public static final String MEAN = "mean";
+	/** Sum of the pixels of a block - always results in float pixels */
+	public static final String SUM = "sum";
+	/** Maximum of the pixels of a block */
+	public static final String MAX = "max";
+	public static final String[] METHODS = { MEAN, SUM, MAX };
+
+	/**
+	 * Size of a binned dimension - pixels beyond the last complete block are dropped
+	 * @param size		Size of the dimension
+	 * @param factor	Binning factor
+	 * @return	Binned size (at least 1)
+	 */
+	public static int getBinnedSize(int size, int factor) {
+		return Math.max(1, size / factor);
+	}
+
+	/**
+	 * Bin a plane by averaging blocks of factor x factor pixels
+	 * @param pixels	Pixels of the plane (byte[], short[] or float[])
+	 * @param width		Width of the plane
+	 * @param height	Height of the plane
+	 * @param factor	Binning factor
+	 * @return	Binned pixels with the same type as pixels
+	 */
+	public static Object bin(Object pixels, int width, int height, int factor) {
+		double[] sums = new double[getBinnedSize(width, factor) * getBinnedSize(height, factor)];
+		accumulate(pixels, width, height, factor, sums, SUM);
+		return average(pixels, sums, getBlockSize(width, height, factor));
+	}
+
+	/**
+	 * Number of pixels of a plane within one block
+	 * @param width		Width of the plane
+	 * @param height	Height of the plane
+	 * @param factor	Binning factor
+	 */
+	public static int getBlockSize(int width, int height, int factor) {
+		return Math.min(factor, width) * Math.min(factor, height);
+	}
+
+	/**
+	 * Create the accumulator of a binned plane
+	 * @param size		Number of pixels of the binned plane
+	 * @param method	MEAN, SUM or MAX
+	 */
+	public static double[] newAccumulator(int size, String method) {
+		double[] values = new double[size];
+		if (MAX.equals(method)) {
+			Arrays.fill(values, Double.NEGATIVE_INFINITY);
+		}
+		return values;
+	}
+
+	/**
+	 * Accumulate the blocks of factor x factor pixels of a plane into the values of a binned plane
+	 * @param pixels	Pixels of the plane (byte[], short[] or float[])
+	 * @param width		Width of the plane
+	 * @param height	Height of the plane
+	 * @param factor	Binning factor
+	 * @param values	Accumulated values of the binned plane (see newAccumulator)
+	 * @param method	MEAN or SUM add the pixels to the values, MAX keeps the maximum
+	 */
+	public static void accumulate(Object pixels, int width, int height, int factor, double[] values, String method) {
+		int bw = getBinnedSize(width, factor);
+		int bh = getBinnedSize(height, factor);
+		int fx = Math.min(factor, width);
+		int fy = Math.min(factor, height);
+		boolean max = MAX.equals(method);
+
+		for (int y = 0; y < bh * fy; y++) {
+			int row = y * width;
+			int offset = (y / fy) * bw;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				for (int x = 0; x < bw * fx; x++) {
+					int i = offset + x / fx;
+					int v = p[row + x] & 0xff;
+					values[i] = max ? Math.max(values[i], v) : values[i] + v;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[]) pixels;
+				for (int x = 0; x < bw * fx; x++) {
+					int i = offset + x / fx;
+					int v = p[row + x] & 0xffff;
+					values[i] = max ? Math.max(values[i], v) : values[i] + v;
+				}
+			} else if (pixels instanceof float[]) {
+				float[] p = (float[]) pixels;
+				for (int x = 0; x < bw * fx; x++) {
+					int i = offset + x / fx;
+					float v = p[row + x];
+					values[i] = max ? Math.max(values[i], v) : values[i] + v;
+				}
+			} else {
+				throw new IllegalArgumentException("Unsupported pixel type");
+			}
+		}
+	}
+
+	/**
+	 * Convert accumulated values into the pixels of a binned plane
+	 * @param type		Pixel array with the type of the binned plane (ignored for SUM)
+	 * @param values	Accumulated values
+	 * @param n			Number of pixels accumulated per value
+	 * @param method	MEAN, SUM or MAX
+	 * @return	Pixels of the binned plane - float[] for SUM, otherwise the type of type
+	 */
+	public static Object reduce(Object type, double[] values, int n, String method) {
+		if (SUM.equals(method)) {
+			return average(new float[0], values, 1);
+		} else if (MAX.equals(method)) {
+			return average(type, values, 1);
+		}
+		return average(type, values, n);
+	}
+
+	/**
+	 * Average the sums of the binned pixels into a pixel array
+	 * @param type	Pixel array with the type of the result
+	 * @param sums	Sums of the binned pixels
+	 * @param n		Number of pixels per sum
+	 */
+	static Object average(Object type, double[] sums, int n) {
+		if (type instanceof byte[]) {
+			byte[] b = new byte[sums.length];
+			for (int i = 0; i < sums.length; i++) {
+				b[i] = (byte) (int) (sums[i] / n + 0.5);
+			}
+			return b;
+		} else if (type instanceof short[]) {
+			short[] b = new short[sums.length];
+			for (int i = 0; i < sums.length; i++) {
+				b[i] = (short) (int) (sums[i] / n + 0.5);
+			}
+			return b;
+		}
+		float[] b = new float[sums.length];
+		for (int i = 0; i < sums.length; i++) {
+			b[i] = (float) (sums[i] / n);
+		}
+		return b;
+	}
+
+	/**
+	 * Expand a binned plane to the original size by repeating every pixel
+	 * @param pixels	Pixels of the binned plane (byte[], short[] or float[])
+	 * @param width		Width of the binned plane
+	 * @param height	Height of the binned plane
+	 * @param factor	Binning factor
+	 * @param targetWidth	Width of the expanded plane
+	 * @param targetHeight	Height of the expanded plane
+	 * @return	Expanded pixels with the same type as pixels
+	 */
+	public static Object expand(Object pixels, int width, int height, int factor, int targetWidth, int targetHeight) {
+		int[] columns = new int[targetWidth];
+		for (int x = 0; x < targetWidth; x++) {
+			columns[x] = Math.min(x / factor, width - 1);
+		}
+
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			byte[] e = new byte[targetWidth * targetHeight];
+			for (int y = 0; y < targetHeight; y++) {
+				int row = Math.min(y / factor, height - 1) * width;
+				for (int x = 0, i = y * targetWidth; x < targetWidth; x++, i++) {
+					e[i] = p[row + columns[x]];
+				}
+			}
+			return e;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			short[] e = new short[targetWidth * targetHeight];
+			for (int y = 0; y < targetHeight; y++) {
+				int row = Math.min(y / factor, height - 1) * width;
+				for (int x = 0, i = y * targetWidth; x < targetWidth; x++, i++) {
+					e[i] = p[row + columns[x]];
+				}
+			}
+			return e;
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			float[] e = new float[targetWidth * targetHeight];
+			for (int y = 0; y < targetHeight; y++) {
+				int row = Math.min(y / factor, height - 1) * width;
+				for (int x = 0, i = y * targetWidth; x < targetWidth; x++, i++) {
+					e[i] = p[row + columns[x]];
+				}
+			}
+			return e;
+		}
+		throw new IllegalArgumentException("Unsupported pixel type");
+	}
+}
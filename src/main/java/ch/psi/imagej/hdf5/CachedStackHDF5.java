@@ -0,0 +1,221 @@
+package ch.psi.imagej.hdf5;
+
+import java.lang.reflect.Array;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.h5.H5File;
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Read-only virtual stack whose slices are read from an HDF5 file on demand.
+ *
+ * The slices are kept in a slice cache and read ahead in scroll direction by a prefetcher.
+ * Subclasses only read a slice from the file (readSlice) - they may put further slices read
+ * along with it (e.g. the other slices of a chunk) into the cache. The pixels handed out are
+ * copies, so that changes of the image do not end up in the cache.
+ */
+public abstract class CachedStackHDF5 extends ImageStack {
+
+	private static final Logger logger = Logger.getLogger(CachedStackHDF5.class.getName());
+
+	/** Default fraction of the ImageJ heap used to cache slices */
+	public static final double DEFAULT_CACHE_FRACTION = 0.25;
+	/** Default maximum number of slices to read ahead while scrolling */
+	public static final int DEFAULT_PREFETCH_SLICES = 16;
+
+	protected final SliceCache cache;
+	private SlicePrefetcher prefetcher;
+
+	/**
+	 * @param width			Width of the slices
+	 * @param height		Height of the slices
+	 * @param cacheFraction	Fraction of the ImageJ heap used to cache slices (0 disables the cache)
+	 */
+	protected CachedStackHDF5(int width, int height, double cacheFraction) {
+		super(width, height);
+		this.cache = new SliceCache((long) (IJ.maxMemory() * cacheFraction));
+	}
+
+	/**
+	 * Start reading ahead - to be called at the end of the constructor of the subclass.
+	 * Do not prefetch more slices than half of the cache can hold. Reads of the HDF5 library
+	 * are serialized, therefore a single worker thread is used.
+	 * @param sliceSize	Size of a slice in bytes
+	 */
+	protected void startPrefetching(long sliceSize) {
+		int prefetch = (int) Math.min(DEFAULT_PREFETCH_SLICES, cache.getCapacity() / 2 / Math.max(1, sliceSize));
+		this.prefetcher = new SlicePrefetcher(cache, this::readSlice, getSize(), prefetch, 1);
+	}
+
+	protected SlicePrefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * Read slice from file
+	 * @param slice	Slice number, 1&lt;=slice&lt;=nslices
+	 * @return	Pixel array of the slice or null if the slice cannot be read
+	 */
+	protected abstract Object readSlice(int slice);
+
+	/**
+	 * Whether cached pixels can be used for the stack (e.g. are of the current resolution)
+	 */
+	protected boolean isCurrent(Object pixels) {
+		return true;
+	}
+
+	/**
+	 * Convert pixels read (or cached) into the pixels of the stack
+	 * @param pixels	Pixels read - must not be modified
+	 * @return	Pixels of the stack (a copy)
+	 */
+	protected Object toStackPixels(Object pixels) {
+		return copy(pixels);
+	}
+
+	public Object getPixels(int slice) {
+		prefetcher.accessed(slice);
+		Object pixels = current(cache.get(slice));
+		if (pixels == null) {
+			// Slice might currently be read by the prefetcher
+			prefetcher.await(slice);
+			pixels = current(cache.peek(slice));
+		}
+		if (pixels == null) {
+			pixels = readSlice(slice);
+			if (pixels != null) {
+				cache.put(slice, pixels);
+			}
+		}
+		// The stack is read-only - changes of the returned pixels must not end up in the cache
+		return (pixels == null) ? null : toStackPixels(pixels);
+	}
+
+	private Object current(Object pixels) {
+		return (pixels != null && isCurrent(pixels)) ? pixels : null;
+	}
+
+	/**
+	 * Copy a pixel array
+	 * @param pixels	Pixels to copy (can be null)
+	 */
+	static Object copy(Object pixels) {
+		if (pixels == null) {
+			return null;
+		}
+		int length = Array.getLength(pixels);
+		Object copy = Array.newInstance(pixels.getClass().getComponentType(), length);
+		System.arraycopy(pixels, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Returns an ImageProcessor for the specified slice, were 1<=n<=nslices.
+	 * Returns null if the stack is empty.
+	 */
+	public ImageProcessor getProcessor(int slice) {
+		final Object pixels = getPixels(slice);
+		ImageProcessor ip;
+		if (pixels instanceof byte[]) {
+			ip = new ByteProcessor(getWidth(), getHeight());
+		} else if (pixels instanceof short[]) {
+			ip = new ShortProcessor(getWidth(), getHeight());
+		} else if (pixels instanceof int[]) {
+			ip = new ColorProcessor(getWidth(), getHeight());
+		} else if (pixels instanceof float[]) {
+			ip = new FloatProcessor(getWidth(), getHeight());
+		} else {
+			throw new IllegalArgumentException("Unknown stack type");
+		}
+		ip.setPixels(pixels);
+		return ip;
+	}
+
+	/** Does nothing. */
+	public void addSlice(String sliceLabel, Object pixels) {
+	}
+
+	/** Does nothing. */
+	public void addSlice(String sliceLabel, ImageProcessor ip) {
+	}
+
+	/** Does nothing. */
+	public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+	}
+
+	/** Does nothing. */
+	public void deleteSlice(int n) {
+	}
+
+	/** Does nothing. */
+	public void deleteLastSlice() {
+	}
+
+	/** Does nothing. */
+	public void setPixels(Object pixels, int n) {
+	}
+
+	/** Returns the label of the Nth image. */
+	public String getSliceLabel(int slice) {
+		return "Slice: " + slice;
+	}
+
+	/** Does nothing. */
+	public void setSliceLabel(String label, int n) {
+	}
+
+	/** Returns null. */
+	public Object[] getImageArray() {
+		return null;
+	}
+
+	/** Always return true. */
+	public boolean isVirtual() {
+		return true;
+	}
+
+	/** Does nothing. */
+	public void trim() {
+	}
+
+	/**
+	 * Returns the slice cache of this stack
+	 */
+	public SliceCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Close the read sessions of the datasets and the HDF5 files
+	 */
+	protected abstract void closeFiles();
+
+	/**
+	 * Close HDF5 file
+	 */
+	public void close() {
+		logger.info("Closing HDF5 file - slice cache hits: " + cache.getHits() + " misses: " + cache.getMisses());
+		prefetcher.shutdown();
+		cache.clear();
+		closeFiles();
+	}
+
+	/**
+	 * Close an HDF5 file, errors are logged
+	 */
+	protected static void close(H5File file) {
+		try {
+			file.close();
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to close HDF5 file", e);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ch.psi.imagej.hdf5;
+
+import java.util.Map;
+
+import ij.IJ;
+
+/**
+ * Region of a dataset to load: a rectangle of the planes and a range of slices.
+ *
+ * The rectangle applies to the last two dimensions of a dataset (the rows and columns of the
+ * planes), the slice range to the innermost leading dimension (e.g. z). All indices start at 0,
+ * the slice range includes zEnd. The region is clipped to the dimensions of the dataset - a width
+ * or height of 0 and a zEnd of -1 extend the region to the end of the dimension.
+ */
+public class Crop {
+
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int zStart;
+	private final int zEnd;
+
+	/**
+	 * Region covering the whole dataset
+	 */
+	public Crop() {
+		this(0, 0, 0, 0, 0, -1);
+	}
+
+	public Crop(int x, int y, int width, int height, int zStart, int zEnd) {
+		this.x = Math.max(0, x);
+		this.y = Math.max(0, y);
+		this.width = Math.max(0, width);
+		this.height = Math.max(0, height);
+		this.zStart = Math.max(0, zStart);
+		this.zEnd = zEnd;
+	}
+
+	/**
+	 * Create a region from the arguments x, y, width, height, zstart and zend
+	 * @param arguments	Arguments (see HDF5Reader.parseArguments)
+	 * @return	Region or null if none of the arguments is given
+	 * @throws IllegalArgumentException	If an argument is not an integer - the error is shown to the user
+	 */
+	public static Crop parse(Map<String, String> arguments) {
+		if (!(arguments.containsKey("x") || arguments.containsKey("y") || arguments.containsKey("width")
+				|| arguments.containsKey("height") || arguments.containsKey("zstart") || arguments.containsKey("zend"))) {
+			return null;
+		}
+		return new Crop(getInt(arguments, "x", 0), getInt(arguments, "y", 0), getInt(arguments, "width", 0),
+				getInt(arguments, "height", 0), getInt(arguments, "zstart", 0), getInt(arguments, "zend", -1));
+	}
+
+	private static int getInt(Map<String, String> arguments, String key, int defaultValue) {
+		String value = arguments.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			String message = "Invalid region: " + key + "=" + value + " is not an integer";
+			IJ.error(message);
+			throw new IllegalArgumentException(message, e);
+		}
+	}
+
+	/**
+	 * Whether the region covers the whole dataset
+	 */
+	public boolean isFull() {
+		return x == 0 && y == 0 && width == 0 && height == 0 && zStart == 0 && zEnd < 0;
+	}
+
+	/**
+	 * Start of the region in a dataset
+	 * @param dimensions	Dimensions of the dataset
+	 * @param nLeading		Number of leading dimensions (i.e. dimensions that are not part of a plane)
+	 * @return	Start of the hyperslab of the region
+	 */
+	public long[] getStart(long[] dimensions, int nLeading) {
+		long[] start = new long[dimensions.length];
+		if (nLeading > 0) {
+			start[nLeading - 1] = Math.min(zStart, dimensions[nLeading - 1] - 1);
+		}
+		start[nLeading] = Math.min(y, dimensions[nLeading] - 1);
+		start[nLeading + 1] = Math.min(x, dimensions[nLeading + 1] - 1);
+		return start;
+	}
+
+	/**
+	 * Size of the region in a dataset
+	 * @param dimensions	Dimensions of the dataset
+	 * @param nLeading		Number of leading dimensions (i.e. dimensions that are not part of a plane)
+	 * @return	Count of the hyperslab of the region
+	 */
+	public long[] getCount(long[] dimensions, int nLeading) {
+		long[] start = getStart(dimensions, nLeading);
+		long[] count = dimensions.clone();
+		if (nLeading > 0) {
+			long end = (zEnd < 0) ? dimensions[nLeading - 1] - 1 : Math.min(zEnd, dimensions[nLeading - 1] - 1);
+			count[nLeading - 1] = Math.max(1, end - start[nLeading - 1] + 1);
+		}
+		count[nLeading] = clip(height, start[nLeading], dimensions[nLeading]);
+		count[nLeading + 1] = clip(width, start[nLeading + 1], dimensions[nLeading + 1]);
+		return count;
+	}
+
+	private static long clip(int size, long start, long dimension) {
+		return (size <= 0) ? dimension - start : Math.min(size, dimension - start);
+	}
+
+	@Override
+	public String toString() {
+		return "x=" + x + " y=" + y + " width=" + width + " height=" + height + " zstart=" + zStart + " zend=" + zEnd;
+	}
+}
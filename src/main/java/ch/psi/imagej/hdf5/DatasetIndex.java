@@ -0,0 +1,278 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.Dataset;
+import hdf.object.h5.H5File;
+import ij.Prefs;
+
+/**
+ * Index of the datasets of a file that is persisted in a user cache directory. The index
+ * holds the information needed to show the datasets of a file for selection, without
+ * touching the HDF5 metadata of the file. The index is keyed by the path, size and
+ * modification time of the file and is discarded as soon as one of them changes.
+ */
+public class DatasetIndex {
+
+	private static final Logger logger = Logger.getLogger(DatasetIndex.class.getName());
+
+	/** ImageJ preference to enable the index */
+	public static final String PREFERENCE = "hdf5.index";
+
+	private static final String HEADER = "# ch.psi.imagej.hdf5 dataset index v1";
+	private static final String SEPARATOR = "\t";
+
+	private final List<Entry> entries;
+
+	public DatasetIndex(List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return	True if the usage of the index is enabled in the ImageJ preferences
+	 */
+	public static boolean isEnabled() {
+		return Prefs.get(PREFERENCE, false);
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Prefs.set(PREFERENCE, enabled);
+	}
+
+	/**
+	 * @return	Directory the indexes are stored in
+	 */
+	public static File getCacheDirectory() {
+		return new File(System.getProperty("user.home"), ".cache" + File.separator + "ch.psi.imagej.hdf5");
+	}
+
+	/**
+	 * Get the index file of a file
+	 * @param directory	Directory the indexes are stored in
+	 * @param file		HDF5 file
+	 * @return	Index file
+	 */
+	public static File getIndexFile(File directory, File file) {
+		String path = file.getAbsolutePath();
+		return new File(directory, file.getName() + "-" + Integer.toHexString(path.hashCode()) + ".index");
+	}
+
+	/**
+	 * Load index of a file from the cache directory
+	 * @param file	HDF5 file
+	 * @return	Index or null if there is no up to date index for the file
+	 */
+	public static DatasetIndex load(File file) {
+		return read(getIndexFile(getCacheDirectory(), file), file);
+	}
+
+	/**
+	 * Read index of a file
+	 * @param indexFile	Index file
+	 * @param file		HDF5 file
+	 * @return	Index or null if the index file does not exist or does not match the file
+	 */
+	public static DatasetIndex read(File indexFile, File file) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(indexFile.toPath()), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(reader.readLine())
+					|| !file.getAbsolutePath().equals(readValue(reader, "path"))
+					|| !Long.toString(file.length()).equals(readValue(reader, "size"))
+					|| !Long.toString(file.lastModified()).equals(readValue(reader, "modified"))) {
+				logger.info("Dataset index of " + file.getAbsolutePath() + " is out of date");
+				return null;
+			}
+
+			List<Entry> entries = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				entries.add(Entry.parse(line));
+			}
+			return new DatasetIndex(entries);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to read dataset index " + indexFile.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	private static String readValue(BufferedReader reader, String key) throws IOException {
+		String line = reader.readLine();
+		if (line == null || !line.startsWith(key + SEPARATOR)) {
+			return null;
+		}
+		return line.substring(key.length() + SEPARATOR.length());
+	}
+
+	/**
+	 * Write index of a file
+	 * @param indexFile	Index file
+	 * @param file		HDF5 file
+	 * @throws IOException
+	 */
+	public void write(File indexFile, File file) throws IOException {
+		File directory = indexFile.getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+
+		// Write to a temporary file first so that readers never see a partial index
+		File tmp = File.createTempFile(indexFile.getName(), ".tmp", directory);
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8))) {
+			writer.write(HEADER);
+			writer.newLine();
+			writer.write("path" + SEPARATOR + file.getAbsolutePath());
+			writer.newLine();
+			writer.write("size" + SEPARATOR + file.length());
+			writer.newLine();
+			writer.write("modified" + SEPARATOR + file.lastModified());
+			writer.newLine();
+			for (Entry entry : entries) {
+				writer.write(entry.format());
+				writer.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Create index by walking through all datasets of a file
+	 * @param file	Opened HDF5 file (with hierarchy loaded)
+	 * @return	Index
+	 */
+	public static DatasetIndex create(H5File file) {
+		List<Entry> entries = new ArrayList<>();
+		for (Dataset dataset : HDF5Utilities.getDatasets(file)) {
+			entries.add(new Entry(dataset.getFullName(), dataset.getDims(), dataset.getDatatype().getDescription(),
+					HDF5Utilities.getChunkSize(dataset), dataset.getCompression()));
+		}
+		return new DatasetIndex(entries);
+	}
+
+	/**
+	 * Create the index of a file in the background and store it in the cache directory
+	 * @param filename	HDF5 file
+	 */
+	public static void update(String filename) {
+		Thread thread = new Thread(() -> {
+			File f = new File(filename);
+			H5File file = new H5File(filename, H5File.READ);
+			try {
+				file.setMaxMembers(Integer.MAX_VALUE);
+				file.open();
+				create(file).write(getIndexFile(getCacheDirectory(), f), f);
+				logger.info("Created dataset index of " + filename);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to create dataset index of " + filename, e);
+			} finally {
+				try {
+					file.close();
+				} catch (Exception e) {
+					logger.log(Level.WARNING, "Unable to close " + filename, e);
+				}
+			}
+		}, "HDF5 dataset index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Index entry of a dataset
+	 */
+	public static class Entry {
+		private final String fullName;
+		private final long[] dims;
+		private final String datatype;
+		private final long[] chunks;
+		private final String compression;
+
+		public Entry(String fullName, long[] dims, String datatype, long[] chunks, String compression) {
+			this.fullName = fullName;
+			this.dims = dims;
+			this.datatype = datatype;
+			this.chunks = chunks;
+			this.compression = compression;
+		}
+
+		public String getFullName() {
+			return fullName;
+		}
+
+		public int getRank() {
+			return dims.length;
+		}
+
+		public long[] getDims() {
+			return dims;
+		}
+
+		public String getDatatype() {
+			return datatype;
+		}
+
+		/**
+		 * @return	Chunk size or null if the dataset is not chunked
+		 */
+		public long[] getChunks() {
+			return chunks;
+		}
+
+		public String getCompression() {
+			return compression;
+		}
+
+		private String format() {
+			return fullName + SEPARATOR + formatDims(dims) + SEPARATOR + datatype + SEPARATOR + formatDims(chunks) + SEPARATOR + compression;
+		}
+
+		private static Entry parse(String line) {
+			String[] fields = line.split(SEPARATOR, -1);
+			if (fields.length != 5) {
+				throw new IllegalArgumentException("Invalid index entry: " + line);
+			}
+			return new Entry(fields[0], parseDims(fields[1]), fields[2], parseDims(fields[3]), fields[4]);
+		}
+
+		private static String formatDims(long[] dims) {
+			if (dims == null) {
+				return "-";
+			}
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < dims.length; i++) {
+				if (i > 0) {
+					builder.append(",");
+				}
+				builder.append(dims[i]);
+			}
+			return builder.toString();
+		}
+
+		private static long[] parseDims(String value) {
+			if (value.equals("-")) {
+				return null;
+			}
+			String[] values = value.split(",");
+			long[] dims = new long[values.length];
+			for (int i = 0; i < values.length; i++) {
+				dims[i] = Long.parseLong(values[i]);
+			}
+			return dims;
+		}
+	}
+}
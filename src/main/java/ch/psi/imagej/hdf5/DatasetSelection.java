@@ -13,6 +13,16 @@ public class DatasetSelection {
 	// Intervall to read images
 	private Integer modulo;
 	private boolean virtualStack;
+	// Follow datasets that are being written
+	private boolean live;
+	// Orientation of the planes of 3D virtual stacks (XY, XZ or YZ)
+	private String orientation = "XY";
+	// Region to read (null reads the whole dataset)
+	private Crop crop;
+	// Binning factors (x/y and z) and method applied while reading
+	private int binning = 1;
+	private int binningZ = 1;
+	private String binningMethod = Binning.MEAN;
 	
 	public List<Dataset> getDatasets() {
 		return datasets;
@@ -44,4 +54,39 @@ public class DatasetSelection {
 	public boolean isVirtualStack(){
 		return this.virtualStack;
 	}
+	public void setLive(boolean live) {
+		this.live = live;
+	}
+	public boolean isLive(){
+		return this.live;
+	}
+	public void setOrientation(String orientation) {
+		this.orientation = orientation;
+	}
+	public String getOrientation() {
+		return orientation;
+	}
+	public void setCrop(Crop crop) {
+		this.crop = crop;
+	}
+	public Crop getCrop() {
+		return crop;
+	}
+	public void setBinning(int binning, int binningZ, String binningMethod) {
+		this.binning = Math.max(1, binning);
+		this.binningZ = Math.max(1, binningZ);
+		this.binningMethod = binningMethod;
+	}
+	public int getBinning() {
+		return binning;
+	}
+	public int getBinningZ() {
+		return binningZ;
+	}
+	public String getBinningMethod() {
+		return binningMethod;
+	}
+	public boolean isBinned() {
+		return binning > 1 || binningZ > 1;
+	}
 }
@@ -0,0 +1,456 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.HObject;
+import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+
+/**
+ * Projects a 3D dataset [z][y][x] along one axis (max, min, mean, sum and standard deviation).
+ *
+ * The dataset is never loaded as a stack. Worker threads read chunk-aligned slabs along z and add
+ * them to running accumulators (one value per pixel of the projection), so that all projections
+ * are computed in a single streaming pass through the file. Projections along z result in XY
+ * images, projections along y and x in XZ and YZ images whose rows are the z slices.
+ *
+ * Besides the plugin, the projections can be computed headless with project(...), e.g. from scripts.
+ */
+public class HDF5Projection implements PlugIn {
+
+	private static final Logger logger = Logger.getLogger(HDF5Projection.class.getName());
+
+	public static final String MAX = "max";
+	public static final String MIN = "min";
+	public static final String MEAN = "mean";
+	public static final String SUM = "sum";
+	/** Standard deviation */
+	public static final String STD = "std";
+	public static final String[] TYPES = { MAX, MIN, MEAN, SUM, STD };
+
+	/** Axes to project along */
+	public static final String[] AXES = { "z", "y", "x" };
+
+	private static final String PREFERENCE_AXIS = "hdf5.projection.axis";
+
+	/**
+	 * Arguments (for scripts): file=&lt;path&gt; dataset=&lt;name&gt; axis=z|y|x projection=max,mean,...
+	 * Without a file argument the file and the options are selected in dialogs.
+	 */
+	public void run(String arg) {
+		String filename;
+		String name;
+		int axis;
+		List<String> types = new ArrayList<>();
+
+		Map<String, String> arguments = (arg != null && !arg.trim().isEmpty()) ? HDF5Reader.parseArguments(arg) : null;
+		if (arguments != null && arguments.containsKey("file")) {
+			filename = arguments.get("file");
+			name = arguments.getOrDefault("dataset", "");
+			axis = Math.max(0, Arrays.asList(AXES).indexOf(arguments.getOrDefault("axis", "z")));
+			for (String type : arguments.getOrDefault("projection", MAX).split(",")) {
+				if (!type.trim().isEmpty()) {
+					types.add(type.trim());
+				}
+			}
+		} else {
+			OpenDialog od = new OpenDialog("Project HDF5 Dataset ...", arg);
+			if (od.getFileName() == null) {
+				return;
+			}
+			filename = new File(od.getDirectory() + od.getFileName()).getAbsolutePath();
+
+			GenericDialog gd = new GenericDialog("Project Dataset");
+			gd.addStringField("Dataset", "", 30);
+			gd.addChoice("Axis", AXES, Prefs.get(PREFERENCE_AXIS, AXES[0]));
+			for (String type : TYPES) {
+				gd.addCheckbox(type, MAX.equals(type));
+			}
+			gd.showDialog();
+			if (gd.wasCanceled()) {
+				return;
+			}
+			name = gd.getNextString();
+			axis = gd.getNextChoiceIndex();
+			for (String type : TYPES) {
+				if (gd.getNextBoolean()) {
+					types.add(type);
+				}
+			}
+			Prefs.set(PREFERENCE_AXIS, AXES[axis]);
+		}
+
+		// Fail before the pass through the file
+		try {
+			checkTypes(types.toArray(new String[0]));
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+			return;
+		}
+
+		try {
+			for (ImagePlus imp : project(filename, name, axis, types.toArray(new String[0]), Prefs.getThreads())) {
+				imp.show();
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to project " + name, e);
+			IJ.error("Unable to project dataset: " + e.getMessage());
+		} finally {
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/**
+	 * Project a dataset of a file
+	 * @param filename	HDF5 file
+	 * @param name		Full name of the 3D dataset
+	 * @param axis		Axis to project along (0 = z, 1 = y, 2 = x)
+	 * @param types		Projections to compute (MAX, MIN, MEAN, SUM and/or STD)
+	 * @param threads	Number of worker threads
+	 * @return	One 32-bit image per projection
+	 * @throws Exception
+	 */
+	public static ImagePlus[] project(String filename, String name, int axis, String[] types, int threads) throws Exception {
+		checkTypes(types);
+		H5File file = new H5File(filename, H5File.READ);
+		try {
+			file.openLazy();
+			HObject object = file.get(name);
+			if (!(object instanceof H5ScalarDS)) {
+				throw new IllegalArgumentException("Dataset " + name + " not found");
+			}
+			H5ScalarDS dataset = (H5ScalarDS) object;
+			dataset.init();
+
+			Accumulator accumulator = project(dataset, axis, types, threads);
+			ImagePlus[] images = new ImagePlus[types.length];
+			for (int i = 0; i < types.length; i++) {
+				String title = types[i].toUpperCase() + "_" + AXES[axis] + "_" + new File(filename).getName() + " " + dataset.getName();
+				images[i] = new ImagePlus(title, accumulator.get(types[i]));
+			}
+			return images;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Check the projections to compute
+	 * @param types	Projections (MAX, MIN, MEAN, SUM and/or STD)
+	 * @throws IllegalArgumentException	If no or an unknown projection is given
+	 */
+	static void checkTypes(String[] types) {
+		if (types.length == 0) {
+			throw new IllegalArgumentException("No projection selected");
+		}
+		for (String type : types) {
+			if (!Arrays.asList(TYPES).contains(type)) {
+				throw new IllegalArgumentException("Unknown projection " + type + " - use one of " + String.join(", ", TYPES));
+			}
+		}
+	}
+
+	/**
+	 * Project a dataset in a single pass
+	 * @param dataset	3D dataset
+	 * @param axis		Axis to project along (0 = z, 1 = y, 2 = x)
+	 * @param types		Projections to compute (MAX, MIN, MEAN, SUM and/or STD)
+	 * @param threads	Number of worker threads
+	 * @return	Accumulated values of the projections
+	 * @throws Exception
+	 */
+	public static Accumulator project(final H5ScalarDS dataset, final int axis, final String[] types, int threads) throws Exception {
+		final long[] dimensions = dataset.getDims();
+		if (dimensions.length != 3) {
+			throw new IllegalArgumentException("Projections can only be computed for 3D datasets");
+		}
+		final int depth = (int) dimensions[0];
+		final int height = (int) dimensions[1];
+		final int width = (int) dimensions[2];
+		final Accumulator result = new Accumulator(axis, depth, height, width, types);
+
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		long sliceSize = (long) width * height * dataset.getDatatype().getDatatypeSize();
+		final int slabDepth = SlabReader.getSlabDepth(chunks, sliceSize, depth, threads);
+		final int nSlabs = (depth + slabDepth - 1) / slabDepth;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		int workers = Math.max(1, Math.min(threads, nSlabs));
+		if (axis == 0) {
+			// Every worker accumulates a full frame - the accumulators use at most a quarter of the heap
+			long frameSize = (long) width * height * Accumulator.getBytesPerPixel(types);
+			workers = (int) Math.max(1, Math.min(workers, IJ.maxMemory() / 4 / Math.max(1, frameSize)));
+		}
+		final int nThreads = workers;
+		logger.info("Projecting " + dataset.getFullName() + " along " + AXES[axis] + " in " + nSlabs + " slabs of " + slabDepth + " slices using " + nThreads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+			Thread thread = new Thread(r, "HDF5 projection");
+			thread.setDaemon(true);
+			return thread;
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			futures.add(executor.submit(() -> {
+				// Slabs cover distinct rows of projections along y and x - only projections along z
+				// need an accumulator per worker
+				Accumulator accumulator = (axis == 0) ? new Accumulator(axis, depth, height, width, types) : result;
+				try (H5ScalarDS.ReadSession session = dataset.openReadSession()) {
+					int slab;
+					while ((slab = next.getAndIncrement()) < nSlabs) {
+						int first = slab * slabDepth;
+						int n = Math.min(slabDepth, depth - first);
+						Object data = session.read(new long[] { first, 0, 0 }, new long[] { n, height, width });
+						if (!HDF5Utilities.isSupported(data)) {
+							throw new IllegalArgumentException("Datatype not supported");
+						}
+						accumulator.add(HDF5Utilities.getSlice(data, 0, n * height * width), first, n);
+						IJ.showProgress(done.incrementAndGet(), nSlabs);
+					}
+				} catch (Exception e) {
+					// Stop the other workers
+					next.set(nSlabs);
+					throw e;
+				}
+				if (accumulator != result) {
+					synchronized (result) {
+						result.merge(accumulator);
+					}
+				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+
+	/**
+	 * Running accumulators of the projections of a dataset [z][y][x] - one value per pixel of the projection.
+	 * Only the values needed for the requested projections are accumulated. The standard deviation
+	 * is accumulated as sum of squared deviations from the mean (Welford) - merged accumulators are
+	 * combined with the pairwise update of Chan et al.
+	 */
+	public static class Accumulator {
+
+		private final int axis;
+		private final int height;
+		private final int width;
+		private final int projectionWidth;
+		private final int projectionHeight;
+		/** Number of values projected onto a pixel */
+		private final int count;
+		// Arrays of projections that are not requested are null
+		private final double[] sum;
+		/** Sums of the squared deviations from the mean */
+		private final double[] deviations;
+		private final float[] min;
+		private final float[] max;
+		/** Number of slices added (see add) */
+		private int added;
+
+		/**
+		 * @param axis		Axis to project along (0 = z, 1 = y, 2 = x)
+		 * @param depth		Number of z slices of the dataset
+		 * @param height	Height of the slices
+		 * @param width		Width of the slices
+		 */
+		public Accumulator(int axis, int depth, int height, int width) {
+			this(axis, depth, height, width, TYPES);
+		}
+
+		/**
+		 * @param axis		Axis to project along (0 = z, 1 = y, 2 = x)
+		 * @param depth		Number of z slices of the dataset
+		 * @param height	Height of the slices
+		 * @param width		Width of the slices
+		 * @param types		Projections to accumulate (MAX, MIN, MEAN, SUM and/or STD)
+		 */
+		public Accumulator(int axis, int depth, int height, int width, String[] types) {
+			this.axis = axis;
+			this.height = height;
+			this.width = width;
+			this.projectionWidth = (axis == 2) ? height : width;
+			this.projectionHeight = (axis == 0) ? height : depth;
+			this.count = (axis == 0) ? depth : (axis == 1) ? height : width;
+
+			int size = projectionWidth * projectionHeight;
+			List<String> t = Arrays.asList(types);
+			this.sum = needsSum(t) ? new double[size] : null;
+			this.deviations = t.contains(STD) ? new double[size] : null;
+			this.min = t.contains(MIN) ? new float[size] : null;
+			this.max = t.contains(MAX) ? new float[size] : null;
+			if (min != null) {
+				Arrays.fill(min, Float.POSITIVE_INFINITY);
+			}
+			if (max != null) {
+				Arrays.fill(max, Float.NEGATIVE_INFINITY);
+			}
+		}
+
+		private static boolean needsSum(List<String> types) {
+			return types.contains(MEAN) || types.contains(SUM) || types.contains(STD);
+		}
+
+		/**
+		 * Memory needed per pixel of the projection
+		 * @param types	Projections to accumulate
+		 * @return	Number of bytes
+		 */
+		static int getBytesPerPixel(String[] types) {
+			List<String> t = Arrays.asList(types);
+			return (needsSum(t) ? 8 : 0) + (t.contains(STD) ? 8 : 0) + (t.contains(MIN) ? 4 : 0) + (t.contains(MAX) ? 4 : 0);
+		}
+
+		/**
+		 * Add consecutive slices of the dataset. Projections along y and x need the full slices,
+		 * i.e. every pixel of the projection is covered by a single call.
+		 * @param pixels	Pixels of the slices (byte[], short[] or float[] - byte and short are unsigned)
+		 * @param first		Index of the first slice
+		 * @param n			Number of slices
+		 */
+		public void add(Object pixels, int first, int n) {
+			float[] values = toFloat(pixels);
+			for (int z = 0, i = 0; z < n; z++) {
+				for (int y = 0; y < height; y++) {
+					int row = (axis == 0) ? y * width : (axis == 1) ? (first + z) * width : (first + z) * height + y;
+					for (int x = 0; x < width; x++, i++) {
+						int t = (axis == 2) ? row : row + x;
+						float v = values[i];
+						if (deviations != null) {
+							// Number of values added to the pixel before this one
+							int k = (axis == 0) ? added + z : (axis == 1) ? y : x;
+							if (k > 0) {
+								double delta = v - sum[t] / k;
+								deviations[t] += delta * delta * k / (k + 1);
+							}
+						}
+						if (sum != null) {
+							sum[t] += v;
+						}
+						if (min != null && v < min[t]) {
+							min[t] = v;
+						}
+						if (max != null && v > max[t]) {
+							max[t] = v;
+						}
+					}
+				}
+			}
+			added += n;
+		}
+
+		/**
+		 * Add the values of another accumulator of the same projection along z
+		 */
+		void merge(Accumulator other) {
+			double n = added;
+			double m = other.added;
+			for (int t = 0; t < projectionWidth * projectionHeight; t++) {
+				if (deviations != null) {
+					deviations[t] += other.deviations[t];
+					if (n > 0 && m > 0) {
+						double delta = other.sum[t] / m - sum[t] / n;
+						deviations[t] += delta * delta * n * m / (n + m);
+					}
+				}
+				if (sum != null) {
+					sum[t] += other.sum[t];
+				}
+				if (min != null) {
+					min[t] = Math.min(min[t], other.min[t]);
+				}
+				if (max != null) {
+					max[t] = Math.max(max[t], other.max[t]);
+				}
+			}
+			added += other.added;
+		}
+
+		private static float[] toFloat(Object pixels) {
+			if (pixels instanceof float[]) {
+				return (float[]) pixels;
+			}
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				float[] f = new float[p.length];
+				for (int i = 0; i < p.length; i++) {
+					f[i] = p[i] & 0xff;
+				}
+				return f;
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[]) pixels;
+				float[] f = new float[p.length];
+				for (int i = 0; i < p.length; i++) {
+					f[i] = p[i] & 0xffff;
+				}
+				return f;
+			}
+			throw new IllegalArgumentException("Unsupported pixel type");
+		}
+
+		/**
+		 * Get a projection
+		 * @param type	MAX, MIN, MEAN, SUM or STD
+		 * @return	Image of the projection
+		 */
+		public FloatProcessor get(String type) {
+			if (!Arrays.asList(TYPES).contains(type)) {
+				throw new IllegalArgumentException("Unknown projection " + type);
+			}
+			Object values = MAX.equals(type) ? max : MIN.equals(type) ? min : STD.equals(type) ? deviations : sum;
+			if (values == null) {
+				throw new IllegalArgumentException("Projection " + type + " was not accumulated");
+			}
+			float[] pixels;
+			if (MAX.equals(type)) {
+				pixels = max.clone();
+			} else if (MIN.equals(type)) {
+				pixels = min.clone();
+			} else {
+				pixels = new float[sum.length];
+				for (int t = 0; t < sum.length; t++) {
+					if (SUM.equals(type)) {
+						pixels[t] = (float) sum[t];
+					} else if (MEAN.equals(type)) {
+						pixels[t] = (float) (sum[t] / count);
+					} else {
+						pixels[t] = (float) Math.sqrt(Math.max(0, deviations[t] / count));
+					}
+				}
+			}
+			return new FloatProcessor(projectionWidth, projectionHeight, pixels);
+		}
+	}
+}
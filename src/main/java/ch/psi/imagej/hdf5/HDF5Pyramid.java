@@ -0,0 +1,372 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.Dataset;
+import hdf.object.Datatype;
+import hdf.object.FileFormat;
+import hdf.object.Group;
+import hdf.object.HObject;
+import hdf.object.h5.H5Datatype;
+import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * Builds a multi-resolution pyramid of a 2D or 3D dataset.
+ *
+ * Level n of the pyramid holds the planes of the dataset binned by 2^n in x and y (the number of
+ * z slices is kept) and is stored as dataset &lt;dataset&gt;_pyramid/level&lt;n&gt; - either in the
+ * file of the dataset or in a sidecar file &lt;file&gt;_pyramid.h5. The dataset is read in a single
+ * streaming pass: worker threads read chunk-aligned slabs, bin every plane down through all levels
+ * and write the binned slabs to the level datasets. The levels are used by the PyramidStackHDF5 to
+ * show zoomed out views of large datasets.
+ *
+ * 2D datasets are read in bands of rows instead of slabs. The height of a band is a multiple of
+ * the binning factor of the coarsest level, so that every band bins to whole rows on all levels.
+ */
+public class HDF5Pyramid implements PlugIn {
+
+	private static final Logger logger = Logger.getLogger(HDF5Pyramid.class.getName());
+
+	/** Suffix of the group holding the levels of a dataset */
+	public static final String SUFFIX = "_pyramid";
+	/** Levels are built until the planes are smaller than this size */
+	private static final int MIN_SIZE = 256;
+
+	private static final String PREFERENCE_SIDECAR = "hdf5.pyramid.sidecar";
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Build HDF5 Pyramid ...", arg);
+		if (od.getFileName() == null) {
+			return;
+		}
+		File f = new File(od.getDirectory() + od.getFileName());
+
+		GenericDialog gd = new GenericDialog("Build Pyramid");
+		gd.addStringField("Dataset", "", 30);
+		gd.addNumericField("Levels (0 = automatic)", 0, 0);
+		gd.addNumericField("Compression (gzip level 0-9)", Prefs.get("hdf5.compression", 0), 0);
+		gd.addCheckbox("Sidecar file", Prefs.get(PREFERENCE_SIDECAR, false));
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return;
+		}
+		String name = gd.getNextString();
+		int levels = (int) gd.getNextNumber();
+		int compression = Math.max(0, Math.min(9, (int) gd.getNextNumber()));
+		boolean sidecar = gd.getNextBoolean();
+		Prefs.set(PREFERENCE_SIDECAR, sidecar);
+
+		H5File file = null;
+		H5File target = null;
+		try {
+			file = new H5File(f.getAbsolutePath(), sidecar ? H5File.READ : H5File.WRITE);
+			file.openLazy();
+			HObject object = file.get(name);
+			if (!(object instanceof H5ScalarDS)) {
+				IJ.error("Dataset " + name + " not found");
+				return;
+			}
+			H5ScalarDS dataset = (H5ScalarDS) object;
+			dataset.init();
+			if (dataset.getRank() < 2 || dataset.getRank() > 3) {
+				IJ.error("Pyramids can only be built for 2D and 3D datasets");
+				return;
+			}
+
+			if (sidecar) {
+				FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+				target = (H5File) fileFormat.createFile(getSidecarFile(f).getAbsolutePath(), FileFormat.FILE_CREATE_OPEN);
+				target.open();
+			} else {
+				target = file;
+			}
+
+			long[] dimensions = dataset.getDims();
+			if (levels <= 0) {
+				levels = getNumberOfLevels(dimensions[dimensions.length - 1], dimensions[dimensions.length - 2]);
+			}
+			build(dataset, target, dataset.getFullName(), levels, compression, Prefs.getThreads());
+			IJ.showStatus("Built " + levels + " pyramid levels of " + name);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to build pyramid of " + name, e);
+			IJ.error("Unable to build pyramid: " + e.getMessage());
+		} finally {
+			IJ.showProgress(1.0);
+			close(target);
+			if (target != file) {
+				close(file);
+			}
+		}
+	}
+
+	private void close(H5File file) {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to close HDF5 file", e);
+			}
+		}
+	}
+
+	/**
+	 * Determine the number of levels needed until the planes are smaller than MIN_SIZE
+	 * @param width		Width of the planes
+	 * @param height	Height of the planes
+	 * @return	Number of levels (excluding the full resolution)
+	 */
+	static int getNumberOfLevels(long width, long height) {
+		int levels = 0;
+		while (Math.max(width, height) >> (levels + 1) >= MIN_SIZE) {
+			levels++;
+		}
+		return levels;
+	}
+
+	/**
+	 * @param fullName	Full name of the dataset
+	 * @param level		Level (starting at 1)
+	 * @return	Full name of the dataset of a level
+	 */
+	public static String getLevelName(String fullName, int level) {
+		return fullName + SUFFIX + "/level" + level;
+	}
+
+	/**
+	 * @param file	HDF5 file
+	 * @return	Sidecar file holding the pyramids of the datasets of the file
+	 */
+	public static File getSidecarFile(File file) {
+		String name = file.getName();
+		int index = name.lastIndexOf('.');
+		return new File(file.getParentFile(), (index > 0 ? name.substring(0, index) : name) + SUFFIX + ".h5");
+	}
+
+	/**
+	 * Get the levels of the pyramid of a dataset
+	 * @param file		File holding the pyramid
+	 * @param fullName	Full name of the dataset
+	 * @return	Datasets of the levels, starting with level 1 - empty if there is no pyramid
+	 */
+	public static List<Dataset> getLevels(H5File file, String fullName) {
+		List<Dataset> levels = new ArrayList<>();
+		try {
+			if (file.get(fullName + SUFFIX) == null) {
+				return levels;
+			}
+			for (int level = 1;; level++) {
+				HObject object = file.get(getLevelName(fullName, level));
+				if (!(object instanceof Dataset)) {
+					break;
+				}
+				((Dataset) object).init();
+				levels.add((Dataset) object);
+			}
+		} catch (Exception e) {
+			logger.log(Level.FINE, "No pyramid of " + fullName, e);
+		}
+		return levels;
+	}
+
+	/**
+	 * Build the levels of the pyramid of a dataset
+	 * @param dataset		2D or 3D dataset
+	 * @param target		File to write the levels to (opened for writing)
+	 * @param fullName		Full name of the dataset
+	 * @param levels		Number of levels
+	 * @param compression	Compression level of the level datasets
+	 * @param threads		Number of worker threads
+	 * @throws Exception
+	 */
+	public static void build(H5ScalarDS dataset, H5File target, String fullName, int levels, int compression, int threads) throws Exception {
+		final long[] dimensions = dataset.getDims();
+		final int rank = dimensions.length;
+		final int nSlices = (rank == 3) ? (int) dimensions[0] : 1;
+		final int[] widths = new int[levels + 1];
+		final int[] heights = new int[levels + 1];
+		widths[0] = (int) dimensions[rank - 1];
+		heights[0] = (int) dimensions[rank - 2];
+		for (int l = 1; l <= levels; l++) {
+			widths[l] = Binning.getBinnedSize(widths[l - 1], 2);
+			heights[l] = Binning.getBinnedSize(heights[l - 1], 2);
+		}
+
+		// 3D datasets are read in slabs of slices, 2D datasets in bands of rows. Bands are a multiple
+		// of the binning factor of the coarsest level high, so that they bin to whole rows on all levels.
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		final int length;
+		final int slabDepth;
+		if (rank == 3) {
+			long sliceSize = (long) widths[0] * heights[0] * dataset.getDatatype().getDatatypeSize();
+			length = nSlices;
+			slabDepth = SlabReader.getSlabDepth(chunks, sliceSize, nSlices, threads);
+		} else {
+			long rowSize = (long) widths[0] * dataset.getDatatype().getDatatypeSize();
+			int factor = 1 << levels;
+			length = heights[0];
+			slabDepth = ((SlabReader.getSlabDepth(chunks, rowSize, heights[0], threads) + factor - 1) / factor) * factor;
+		}
+
+		// Create (or reuse) the datasets of the levels
+		Datatype type = getType(dataset);
+		Group group = HDF5Utilities.createGroup(target, (fullName + SUFFIX).replaceAll("^/+", ""));
+		final H5ScalarDS.WriteSession[] sessions = new H5ScalarDS.WriteSession[levels + 1];
+		try {
+			for (int l = 1; l <= levels; l++) {
+				long[] levelDimensions = (rank == 3) ? new long[] { nSlices, heights[l], widths[l] } : new long[] { heights[l], widths[l] };
+				H5ScalarDS level = null;
+				try {
+					level = (H5ScalarDS) target.get(getLevelName(fullName, l));
+				} catch (Exception e) {
+					level = null;
+				}
+				if (level == null) {
+					long[] levelChunks = HDF5Writer.getChunks(levelDimensions, HDF5Writer.CHUNKING_SLICE, compression, false);
+					if (rank == 2 && levelChunks != null) {
+						// One chunk per band - bands are not written into a shared chunk
+						levelChunks[0] = Math.max(1, Math.min(slabDepth >> l, heights[l]));
+					}
+					level = (H5ScalarDS) H5ScalarDS.create("level" + l, group, type, levelDimensions, levelDimensions.clone(), levelChunks, compression, null, null);
+				}
+				level.init();
+				if (!Arrays.equals(level.getDims(), levelDimensions)) {
+					throw new IllegalArgumentException("Level " + l + " of " + fullName + " exists with different dimensions");
+				}
+				sessions[l] = level.openWriteSession();
+			}
+
+			final int nSlabs = (length + slabDepth - 1) / slabDepth;
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger done = new AtomicInteger();
+			final int nThreads = Math.max(1, Math.min(threads, nSlabs));
+			logger.info("Building " + levels + " levels of " + fullName + " in " + nSlabs + " slabs of " + slabDepth + ((rank == 3) ? " slices" : " rows") + " using " + nThreads + " threads");
+
+			ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+				Thread thread = new Thread(r, "HDF5 pyramid builder");
+				thread.setDaemon(true);
+				return thread;
+			});
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int t = 0; t < nThreads; t++) {
+				futures.add(executor.submit(() -> {
+					try (H5ScalarDS.ReadSession session = dataset.openReadSession()) {
+						int slab;
+						while ((slab = next.getAndIncrement()) < nSlabs) {
+							int first = slab * slabDepth;
+							int n = Math.min(slabDepth, length - first);
+							long[] start = new long[rank];
+							long[] count = dimensions.clone();
+							start[0] = first;
+							count[0] = n;
+							Object data = session.read(start, count);
+							if (!HDF5Utilities.isSupported(data)) {
+								throw new IllegalArgumentException("Datatype not supported");
+							}
+
+							// Bin every plane (or band) down through all levels
+							int nPlanes = (rank == 3) ? n : 1;
+							int[] rows = new int[levels + 1];
+							rows[0] = (rank == 3) ? heights[0] : n;
+							for (int l = 1; l <= levels; l++) {
+								rows[l] = Binning.getBinnedSize(rows[l - 1], 2);
+							}
+							Object[] binned = new Object[levels + 1];
+							int size = widths[0] * rows[0];
+							for (int i = 0; i < nPlanes; i++) {
+								Object pixels = HDF5Utilities.getSlice(data, i * size, size);
+								for (int l = 1; l <= levels; l++) {
+									pixels = Binning.bin(pixels, widths[l - 1], rows[l - 1], 2);
+									int levelSize = widths[l] * rows[l];
+									if (binned[l] == null) {
+										binned[l] = Array.newInstance(pixels.getClass().getComponentType(), nPlanes * levelSize);
+									}
+									System.arraycopy(pixels, 0, binned[l], i * levelSize, levelSize);
+								}
+							}
+
+							// Writes of the HDF5 library are serialized anyway
+							synchronized (sessions) {
+								for (int l = 1; l <= levels; l++) {
+									if (rank == 3) {
+										sessions[l].write(new long[] { first, 0, 0 }, new long[] { n, heights[l], widths[l] }, binned[l]);
+										continue;
+									}
+									// The rows of the last band might not fill a whole block - they are dropped
+									// like the remainder rows of binning the full plane
+									int levelFirst = first >> l;
+									int levelRows = Math.min(rows[l], heights[l] - levelFirst);
+									if (levelRows <= 0) {
+										continue;
+									}
+									Object band = binned[l];
+									if (levelRows < rows[l]) {
+										band = Array.newInstance(binned[l].getClass().getComponentType(), levelRows * widths[l]);
+										System.arraycopy(binned[l], 0, band, 0, levelRows * widths[l]);
+									}
+									sessions[l].write(new long[] { levelFirst, 0 }, new long[] { levelRows, widths[l] }, band);
+								}
+							}
+							IJ.showProgress(done.incrementAndGet(), nSlabs);
+						}
+					} catch (Exception e) {
+						// Stop the other workers
+						next.set(nSlabs);
+						throw e;
+					}
+					return null;
+				}));
+			}
+
+			try {
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				} else if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw e;
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			for (H5ScalarDS.WriteSession session : sessions) {
+				if (session != null) {
+					session.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Datatype of the levels - the ImageJ pixel type the dataset is shown with
+	 */
+	private static Datatype getType(Dataset dataset) throws Exception {
+		long size = dataset.getDatatype().getDatatypeSize();
+		if (size == 1) {
+			return new H5Datatype(Datatype.CLASS_CHAR, Datatype.NATIVE, Datatype.NATIVE, Datatype.SIGN_NONE);
+		} else if (size == 2) {
+			return new H5Datatype(Datatype.CLASS_INTEGER, 2, Datatype.NATIVE, Datatype.SIGN_NONE);
+		}
+		return new H5Datatype(Datatype.CLASS_FLOAT, Datatype.NATIVE, Datatype.NATIVE, -1);
+	}
+}
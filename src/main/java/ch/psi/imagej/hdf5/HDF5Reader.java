@@ -1,17 +1,22 @@
 package ch.psi.imagej.hdf5;
 
+import hdf.hdf5lib.HDF5Constants;
 import hdf.hdf5lib.exceptions.HDF5Exception;
 import hdf.object.Dataset;
 import hdf.object.Datatype;
+import hdf.object.HObject;
 import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.CompositeImage;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 
+import java.awt.EventQueue;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.util.*;
@@ -44,6 +49,8 @@ public class HDF5Reader implements PlugIn {
 	 * Supported arguments for arg:
 	 * open=&lt;path&gt;
 	 * dataset=/your/path/to/dataset
+	 * x=, y=, width=, height=, zstart=, zend= region to read (see Crop)
+	 * binning=, binning_z=, method=mean|sum|max bin the slices while reading
 	 *
 	 */
 
@@ -81,32 +88,69 @@ public class HDF5Reader implements PlugIn {
 		try {
 			file = new H5File(filename, H5File.READ);
 			file.setMaxMembers(Integer.MAX_VALUE);
-			file.open();
-
-			List<Dataset> datasets = HDF5Utilities.getDatasets(file);
+			// Do not load the whole hierarchy of the file - groups are loaded on demand
+			file.openLazy();
 
 			DatasetSelection selectedDatasets = null;
 			if(interactive){
 				logger.info("Using manual selection");
 				// Manual selection of the dataset and other parameters via a dialog
-				selectedDatasets = selectDatasets(datasets);
+				selectedDatasets = selectDatasets(file);
 			}
 			else{
 				logger.info("Using automatic selection");
 				selectedDatasets = new DatasetSelection();
-				for(Dataset dataset: datasets){
-					if(dataset.getFullName().equals(nameOfDataset)){
-						selectedDatasets.getDatasets().add(dataset);
-						break; // we only support one selection for the time being
-					}
+				HObject object = file.get(nameOfDataset);
+				if(object instanceof Dataset){
+					((Dataset) object).init();
+					selectedDatasets.getDatasets().add((Dataset) object); // we only support one selection for the time being
+				}
+				else{
+					logger.warning("Dataset " + nameOfDataset + " not found");
 				}
 				selectedDatasets.setVirtualStack(virtualstack);
+				if(arg != null && !arg.trim().isEmpty()){
+					Map<String,String> arguments = parseArguments(arg);
+					try{
+						selectedDatasets.setCrop(Crop.parse(arguments));
+					}
+					catch(IllegalArgumentException e){
+						// Already reported by Crop.parse
+						return null;
+					}
+					if(arguments.containsKey("binning") || arguments.containsKey("binning_z")){
+						int binning;
+						int binningZ;
+						try{
+							binning = Integer.parseInt(arguments.getOrDefault("binning", "1"));
+							binningZ = Integer.parseInt(arguments.getOrDefault("binning_z", "1"));
+						}
+						catch(NumberFormatException e){
+							IJ.error("Binning factors must be integers: " + e.getMessage());
+							return null;
+						}
+						String method = arguments.getOrDefault("method", Binning.MEAN);
+						if(!checkBinning(binning, binningZ, method)){
+							return null;
+						}
+						selectedDatasets.setBinning(binning, binningZ, method);
+					}
+				}
+			}
+
+			Crop crop = (selectedDatasets.getCrop() != null) ? selectedDatasets.getCrop() : new Crop();
+			if(!crop.isFull()){
+				logger.info("Reading region " + crop);
 			}
 
 
 			// TODO to be removed - Workaround virtual stack - keep HDF5 file open at the end 
 			close=!selectedDatasets.isVirtualStack();
 
+			if(selectedDatasets.isLive() && selectedDatasets.isVirtualStack()){
+				file = reopenLive(file, selectedDatasets);
+			}
+
 			// TODO Remove
 			// Hack as a proof of principle
 			if(selectedDatasets.isGroup()){
@@ -141,32 +185,32 @@ public class HDF5Reader implements PlugIn {
 
 				logger.info("Reading dataset: " + datasetName + " Dimensions: " + numberOfDimensions + " Type: " + datatype.getDescription());
 
+				// Regions can only be read of 2D, 3D and 4D grayscale datasets
+				boolean rgb = numberOfDimensions >= 3 && dimensions[numberOfDimensions - 1] == 3;
+				if(!crop.isFull() && (rgb || numberOfDimensions == 5)){
+					IJ.error("Regions cannot be read of " + (rgb ? "RGB" : "5D") + " datasets - " + datasetName + " not opened");
+					continue;
+				}
+				// Binning is only applied while reading 3D and 4D grayscale datasets into memory
+				String unbinnable = selectedDatasets.isBinned() ? getUnbinnable(selectedDatasets, dimensions) : null;
+				if(unbinnable != null){
+					IJ.error("Binning cannot be applied to " + unbinnable + " - " + datasetName + " not opened");
+					continue;
+				}
 
 				// Read dataset
 				if (numberOfDimensions == 5 && dimensions[4] == 3) {
 					logger.info("4D RGB Image (HyperVolume)");
 
-					// Select what to readout - read the whole dataset, since
-					// reading chunked datasets slice-wise is too slow
-					long[] selected = var.getSelectedDims();
-					selected[0] = dimensions[0];
-					selected[1] = dimensions[1];
-					selected[2] = dimensions[2];
-					selected[3] = dimensions[3];
-					selected[4] = dimensions[4];
-
-					Object wholeDataset = var.read();
-
-					stack = new ImageStack((int) dimensions[3], (int) dimensions[2]);
-					stacks.add(stack);
-					int stackSize = (int) (dimensions[2] * dimensions[3] * 3);
-					int singleVolumeSize = (int) (dimensions[1] * stackSize);
-					for (int volIDX = 0; volIDX < dimensions[0]; ++volIDX) {
-						for (int lev = 0; lev < dimensions[1]; ++lev) {
-							int startIdx = (volIDX * singleVolumeSize * 3) + (lev * stackSize);
-							addSliceRGB(stack, wholeDataset, (int) dimensions[2], (int) dimensions[3], startIdx);
-						}
+					if(selectedDatasets.isVirtualStack()){
+						logger.info("Use virtual stack");
+						stack = new VirtualStackHDF5(file, var, true);
+					}
+					else{
+						stack = new ImageStack((int) dimensions[3], (int) dimensions[2]);
+						readSlabs(stack, var, true);
 					}
+					stacks.add(stack);
 
 					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
 					imp.setDimensions(3, (int) dimensions[1], (int) dimensions[0]);
@@ -175,28 +219,52 @@ public class HDF5Reader implements PlugIn {
 					imp.resetDisplayRange();
 					if(showImage) {
 						imp.show();
+						ImagePlusHDF5.closeOnWindowClosed(imp);
 					}
 					
-				} else if (numberOfDimensions == 4 && dimensions[3] == 3) {
-					logger.info("3D RGB Image");
+				} else if (numberOfDimensions == 5) {
+					logger.info("5D Image (t, c, z, y, x)");
 
-					// Select what to readout - read the whole dataset, since
-					// reading chunked datasets slice-wise is too slow
-					long[] selected = var.getSelectedDims();
-					selected[0] = dimensions[0];
-					selected[1] = dimensions[1];
-					selected[2] = dimensions[2];
-					selected[3] = dimensions[3];
+					int nChannels = (int) dimensions[1];
+					int nSlices = (int) dimensions[2];
+					if(selectedDatasets.isVirtualStack()){
+						logger.info("Use virtual stack");
+						stack = new VirtualStackHDF5(file, var, false);
+					}
+					else{
+						// Reorder the planes into the (c, z, t) order of ImageJ hyperstacks
+						stack = new ImageStack((int) dimensions[4], (int) dimensions[3]);
+						Object[] planes = readSlices(var, false, 1, new Crop(), SlabReader::read);
+						for (int i = 0; i < planes.length; i++) {
+							stack.addSlice(null, planes[HDF5Utilities.getPlaneIndex(i, nChannels, nSlices)]);
+						}
+					}
+					stacks.add(stack);
 
-					Object wholeDataset = var.read();
+					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
+					imp.setDimensions(nChannels, nSlices, (int) dimensions[0]);
+					if (nChannels > 1) {
+						imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+					}
+					imp.setOpenAsHyperStack(true);
+					imp.resetDisplayRange();
+					if(showImage) {
+						imp.show();
+						ImagePlusHDF5.closeOnWindowClosed(imp);
+					}
 
-					stack = new ImageStack((int) dimensions[2], (int) dimensions[1]);
-					stacks.add(stack);
-					int stackSize = (int) (dimensions[1] * dimensions[2] * 3);
-					for (int lev = 0; lev < dimensions[0]; ++lev) {
-						int startIdx = lev * stackSize;
-						addSliceRGB( stack, wholeDataset, (int) dimensions[1], (int) dimensions[2], startIdx);
+				} else if (numberOfDimensions == 4 && dimensions[3] == 3) {
+					logger.info("3D RGB Image");
+
+					if(selectedDatasets.isVirtualStack()){
+						logger.info("Use virtual stack");
+						stack = new VirtualStackHDF5(file, var, true);
+					}
+					else{
+						stack = new ImageStack((int) dimensions[2], (int) dimensions[1]);
+						readSlabs(stack, var, true);
 					}
+					stacks.add(stack);
 
 					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
 					imp.setDimensions(3, (int) dimensions[0], 1);
@@ -205,34 +273,28 @@ public class HDF5Reader implements PlugIn {
 					imp.resetDisplayRange();
 					if(showImage) {
 						imp.show();
+						ImagePlusHDF5.closeOnWindowClosed(imp);
 					}
 					
 				} else if (numberOfDimensions == 4) {
 					logger.info("4D Image (HyperVolume)");
 
-					// Select what to readout - read the whole dataset, since
-					// reading chunked datasets slice-wise is too slow
-					long[] selected = var.getSelectedDims();
-					selected[0] = dimensions[0];
-					selected[1] = dimensions[1];
-					selected[2] = dimensions[2];
-					selected[3] = dimensions[3];
-
-					Object wholeDataset = var.read();
-
-					stack = new ImageStack((int) dimensions[3], (int) dimensions[2]);
-					stacks.add(stack);
-					int size = (int) (dimensions[2] * dimensions[3]);
-					long singleVolumeSize = dimensions[1] * size;
-					for (int volIDX = 0; volIDX < dimensions[0]; ++volIDX) {
-						for (int lev = 0; lev < dimensions[1]; ++lev) {
-							int startIdx = (int) ((volIDX * singleVolumeSize) + (lev * size));
-							addSlice(stack, wholeDataset, startIdx, size);
-						}
+					long[] region = crop.getCount(dimensions, 2);
+					if(selectedDatasets.isVirtualStack()){
+						logger.info("Use virtual stack");
+						stack = new VirtualStackHDF5(file, var, false, crop, VirtualStackHDF5.DEFAULT_CACHE_FRACTION);
+					}
+					else if(selectedDatasets.isBinned()){
+						stack = readBinned(var, 1, crop, selectedDatasets);
 					}
+					else{
+						stack = new ImageStack((int) region[3], (int) region[2]);
+						readSlabs(stack, var, false, 1, crop);
+					}
+					stacks.add(stack);
 
-					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
-					imp.setDimensions(1, (int) dimensions[1], (int) dimensions[0]);
+					ImagePlus imp = new ImagePlusHDF5(filename + " " + datasetName, stack);
+					imp.setDimensions(1, stack.getSize() / (int) dimensions[0], (int) dimensions[0]);
 					imp.setOpenAsHyperStack(true);
 					imp.resetDisplayRange();
 					if(showImage) {
@@ -242,18 +304,9 @@ public class HDF5Reader implements PlugIn {
 				} else if (numberOfDimensions == 3 && dimensions[2] == 3) {
 					logger.info("2D RGB Image");
 
-					// Select what to readout - read the whole dataset, since
-					// reading chunked datasets slice-wise is too slow
-					long[] selected = var.getSelectedDims();
-					selected[0] = dimensions[0];
-					selected[1] = dimensions[1];
-					selected[2] = dimensions[2];
-
-					Object wholeDataset = var.read();
-
 					stack = new ImageStack((int) dimensions[1], (int) dimensions[0]);
 					stacks.add(stack);
-					addSliceRGB(stack, wholeDataset, (int) dimensions[0], (int) dimensions[1]);
+					readSlabs(stack, var, true);
 
 					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
 					imp.setDimensions(3, 1, 1);
@@ -267,9 +320,26 @@ public class HDF5Reader implements PlugIn {
 				} else if (numberOfDimensions == 3) {
 					logger.info("3D Image");
 
-					if(selectedDatasets.isVirtualStack()){
+					long[] region = crop.getCount(dimensions, 1);
+					if(selectedDatasets.isVirtualStack() && !crop.isFull() && !"XY".equals(selectedDatasets.getOrientation())){
+						// The XZ/YZ planes are always read across the full dataset
+						IJ.error("XZ/YZ views cannot be cropped - open the region as XY stack");
+						continue;
+					}
+					if(selectedDatasets.isVirtualStack() && !crop.isFull()){
+						logger.info("Use virtual stack of region");
+						stack = new VirtualStackHDF5(file, var, false, crop, VirtualStackHDF5.DEFAULT_CACHE_FRACTION);
+					}
+					else if(selectedDatasets.isVirtualStack() && !"XY".equals(selectedDatasets.getOrientation())){
+						logger.info("Use " + selectedDatasets.getOrientation() + " virtual stack");
+						stack = new OrthogonalStackHDF5(file, var, selectedDatasets.getOrientation());
+					}
+					else if(selectedDatasets.isVirtualStack()){
 						logger.info("Use virtual stack");
-						stack = new VirtualStackHDF5(file, var);
+						stack = selectedDatasets.isLive() ? null : openPyramid(file, var);
+						if(stack == null){
+							stack = new VirtualStackHDF5(file, var);
+						}
 					}
 					else{
 						if(selectedDatasets.getSlice()!=null){
@@ -277,60 +347,36 @@ public class HDF5Reader implements PlugIn {
 							// Select what to readout
 							long[] selected = var.getSelectedDims();
 							selected[0] = 1;
-							selected[1] = dimensions[1];
-							selected[2] = dimensions[2];
+							selected[1] = region[1];
+							selected[2] = region[2];
 							
 							long[] start = var.getStartDims();
+							long[] origin = crop.getStart(dimensions, 1);
 							start[0] = selectedDatasets.getSlice();
+							start[1] = origin[1];
+							start[2] = origin[2];
 	
 							Object wholeDataset = var.read();
 							
-							stack = new ImageStack((int) dimensions[2], (int) dimensions[1]);
-							int size = (int) (dimensions[1] * dimensions[2]);
+							stack = new ImageStack((int) region[2], (int) region[1]);
+							int size = (int) (region[1] * region[2]);
 							
 	//						int startIdx = selectedDatasets.getSlice() * size;
 							addSlice(stack, wholeDataset, 0, size);
 						}
+						else if(selectedDatasets.isBinned()){
+							int step = (selectedDatasets.getModulo() != null) ? selectedDatasets.getModulo() : 1;
+							stack = readBinned(var, step, crop, selectedDatasets);
+						}
 						else if(selectedDatasets.getModulo()!=null){
 							logger.info("Read every "+selectedDatasets.getModulo()+" image");
-							// Select what to readout
-							
-							stack = new ImageStack((int) dimensions[2], (int) dimensions[1]);
-							
-							for(int indexToRead=0;indexToRead<dimensions[0]; indexToRead=indexToRead+selectedDatasets.getModulo()){
-								
-								long[] selected = var.getSelectedDims();
-								selected[0] = 1;
-								selected[1] = dimensions[1];
-								selected[2] = dimensions[2];
-		
-								long[] start = var.getStartDims();
-								start[0] = indexToRead;
-								
-								Object wholeDataset = var.read();
-		
-								int size = (int) (dimensions[1] * dimensions[2]);
-	//							int startIdx = selectedDatasets.getSlice() * size;
-								addSlice(stack, wholeDataset, 0, size);
-							}
+							// Read every n-th slice with strided hyperslab selections
+							stack = new ImageStack((int) region[2], (int) region[1]);
+							readSlabs(stack, var, false, selectedDatasets.getModulo(), crop);
 						}
 						else{
-							// Select what to readout
-							long[] selected = var.getSelectedDims();
-							selected[0] = dimensions[0];
-							selected[1] = dimensions[1];
-							selected[2] = dimensions[2];
-	
-							
-							Object wholeDataset = var.read();
-	
-							stack = new ImageStack((int) dimensions[2], (int) dimensions[1]);
-							int size = (int) (dimensions[1] * dimensions[2]);
-							
-							for (int lev = 0; lev < dimensions[0]; ++lev) {
-								int startIdx = lev * size;
-								addSlice(stack, wholeDataset, startIdx, size);
-							}
+							stack = new ImageStack((int) region[2], (int) region[1]);
+							readSlabs(stack, var, false, 1, crop);
 						}
 					}
 
@@ -340,21 +386,39 @@ public class HDF5Reader implements PlugIn {
 					if(showImage) {
 						imp.show();
 					}
+					if(selectedDatasets.isLive() && stack instanceof VirtualStackHDF5){
+						follow((VirtualStackHDF5) stack, (ImagePlusHDF5) imp);
+					}
+					if(showImage && stack instanceof PyramidStackHDF5){
+						((PyramidStackHDF5) stack).followZoom(imp);
+					}
 					
 				} else if (numberOfDimensions == 2) {
 					logger.info("2D Image");
 					
-					Object wholeDataset = var.read();
+					// Large images with a multi-resolution pyramid are read at the resolution needed
+					stack = (selectedDatasets.isVirtualStack() && crop.isFull()) ? openPyramid(file, var) : null;
+					if(stack == null){
+						// Select the region to read
+						long[] region = crop.getCount(dimensions, 0);
+						System.arraycopy(region, 0, var.getSelectedDims(), 0, region.length);
+						System.arraycopy(crop.getStart(dimensions, 0), 0, var.getStartDims(), 0, region.length);
 
-					stack = new ImageStack((int) dimensions[1], (int) dimensions[0]);
+						Object wholeDataset = var.read();
+
+						stack = new ImageStack((int) region[1], (int) region[0]);
+						addSlice(stack, wholeDataset);
+					}
 					stacks.add(stack);
-					addSlice(stack, wholeDataset);
 					
-					ImagePlus imp = new ImagePlus(filename + " " + datasetName, stack);
+					ImagePlus imp = new ImagePlusHDF5(filename + " " + datasetName, stack);
 					imp.resetDisplayRange();
 					if(showImage) {
 						imp.show();
 					}
+					if(showImage && stack instanceof PyramidStackHDF5){
+						((PyramidStackHDF5) stack).followZoom(imp);
+					}
 					
 				} else {
 					IJ.showStatus("Variable Dimension " + numberOfDimensions + " not supported");
@@ -388,16 +452,19 @@ public class HDF5Reader implements PlugIn {
 	/**
 	 * Selection of the datasets to visualize
 	 * 
-	 * @param datasets
+	 * @param file	File to select the datasets from
 	 * @return	List of datasets to visualize. If nothing selected the list will be empty
 	 * @throws HDF5Exception
 	 */
-	private DatasetSelection selectDatasets(List<Dataset> datasets) throws HDF5Exception {
+	private DatasetSelection selectDatasets(H5File file) throws HDF5Exception {
 		
 		GenericDialog gd = new GenericDialog("Variable Name Selection");
 		gd.addMessage("Please select variables to be loaded.\n");
 		
-		SelectionPanel panel = new SelectionPanel(datasets);
+		// Use the dataset index of the file if there is an up to date one
+		File f = new File(file.getAbsolutePath());
+		DatasetIndex index = DatasetIndex.isEnabled() ? DatasetIndex.load(f) : null;
+		SelectionPanel panel = (index != null) ? new SelectionPanel(file, index) : new SelectionPanel(file);
 			
 			gd = new GenericDialog("Variable Name Selection");
 			gd.add(panel);
@@ -412,11 +479,310 @@ public class HDF5Reader implements PlugIn {
 				selectedDatasets.setSlice(panel.getSlice());
 				selectedDatasets.setModulo(panel.getModulo());
 				selectedDatasets.setVirtualStack(panel.useVirtualStack());
+				selectedDatasets.setLive(panel.useLive());
+				selectedDatasets.setOrientation(panel.getOrientation());
+				if (panel.useCrop() && !selectedDatasets.getDatasets().isEmpty()) {
+					Crop crop = selectCrop(selectedDatasets.getDatasets().get(0));
+					if (crop == null) {
+						// Canceled
+						selectedDatasets.setDatasets(new ArrayList<Dataset>());
+					}
+					selectedDatasets.setCrop(crop);
+				}
+				if (panel.useBinning() && !selectBinning(selectedDatasets)) {
+					// Canceled
+					selectedDatasets.setDatasets(new ArrayList<Dataset>());
+				}
+				
+				DatasetIndex.setEnabled(panel.useIndex());
+				if (panel.useIndex() && index == null) {
+					DatasetIndex.update(file.getAbsolutePath());
+				}
 			}
 		
 		return selectedDatasets;
 	}
 
+	/**
+	 * Selection of the region to read. The fields of the dialog are recorded as the macro
+	 * arguments x, y, width, height, zstart and zend.
+	 * @param dataset	Dataset the defaults are taken from
+	 * @return	Region or null if the dialog was canceled
+	 */
+	private Crop selectCrop(Dataset dataset) {
+		long[] dimensions = dataset.getDims();
+		int rank = dimensions.length;
+
+		GenericDialog gd = new GenericDialog("Crop Region");
+		gd.addMessage("Region of " + dataset.getFullName() + " (indices start at 0)");
+		gd.addNumericField("x", 0, 0);
+		gd.addNumericField("y", 0, 0);
+		gd.addNumericField("width", dimensions[rank - 1], 0);
+		gd.addNumericField("height", (rank > 1) ? dimensions[rank - 2] : 1, 0);
+		gd.addNumericField("zstart", 0, 0);
+		gd.addNumericField("zend", (rank > 2) ? dimensions[rank - 3] - 1 : 0, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return null;
+		}
+		return new Crop((int) gd.getNextNumber(), (int) gd.getNextNumber(), (int) gd.getNextNumber(),
+				(int) gd.getNextNumber(), (int) gd.getNextNumber(), (int) gd.getNextNumber());
+	}
+
+	/**
+	 * Selection of the binning applied while reading. The fields of the dialog are recorded as
+	 * the macro arguments binning, binning_z and method.
+	 * @param selectedDatasets	Selection to set the binning of
+	 * @return	False if the dialog was canceled or the factors are invalid
+	 */
+	private boolean selectBinning(DatasetSelection selectedDatasets) {
+		GenericDialog gd = new GenericDialog("Binning");
+		gd.addNumericField("binning", 2, 0, 5, "pixels (x/y)");
+		gd.addNumericField("binning_z", 1, 0, 5, "slices");
+		gd.addChoice("method", Binning.METHODS, Binning.MEAN);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return false;
+		}
+		// Invalid numbers are returned as NaN and end up as 0
+		int binning = (int) gd.getNextNumber();
+		int binningZ = (int) gd.getNextNumber();
+		String method = gd.getNextChoice();
+		if (!checkBinning(binning, binningZ, method)) {
+			return false;
+		}
+		selectedDatasets.setBinning(binning, binningZ, method);
+		return true;
+	}
+
+	/**
+	 * Check the binning factors and method - an error is shown if they are invalid
+	 * @return	True if both factors are at least 1 and the method is one of Binning.METHODS
+	 */
+	private static boolean checkBinning(int binning, int binningZ, String method) {
+		if (binning < 1 || binningZ < 1) {
+			IJ.error("Binning factors must be at least 1 (binning=" + binning + ", binning_z=" + binningZ + ")");
+			return false;
+		}
+		if (!Arrays.asList(Binning.METHODS).contains(method)) {
+			IJ.error("Unknown binning method " + method + " - use one of " + String.join(", ", Binning.METHODS));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determine why the binning of a selection cannot be applied to a dataset
+	 * @return	Description of the dataset (or stack) binning is not supported for, null if it is supported
+	 */
+	private static String getUnbinnable(DatasetSelection selectedDatasets, long[] dimensions) {
+		int rank = dimensions.length;
+		if (selectedDatasets.isVirtualStack()) {
+			return "virtual stacks";
+		} else if (rank >= 3 && dimensions[rank - 1] == 3) {
+			return "RGB datasets";
+		} else if (rank < 3 || rank > 4) {
+			return rank + "D datasets";
+		} else if (rank == 3 && selectedDatasets.getSlice() != null) {
+			return "single slices";
+		}
+		return null;
+	}
+
+	/**
+	 * Reopen the file for single-writer/multiple-reader (SWMR) access, so that datasets extended
+	 * by the process writing the file can be refreshed. The selected datasets are replaced by the
+	 * ones of the reopened file. Files that cannot be opened for SWMR access (i.e. that were not
+	 * written with the latest file format) are reopened read-only and live mode is switched off
+	 * (see openLive).
+	 * @param file				File opened for the selection
+	 * @param selectedDatasets	Selected datasets
+	 * @return	Reopened file
+	 * @throws Exception
+	 */
+	private H5File reopenLive(H5File file, DatasetSelection selectedDatasets) throws Exception {
+		List<String> names = new ArrayList<>();
+		for (Dataset d : selectedDatasets.getDatasets()) {
+			names.add(d.getFullName());
+		}
+		String filename = file.getAbsolutePath();
+		file.close();
+
+		file = openLive(filename, selectedDatasets);
+		if (!selectedDatasets.isLive()) {
+			IJ.showMessage("Live mode is not available - " + filename + " was not written for SWMR access and is opened without following the datasets");
+		}
+
+		List<Dataset> datasets = new ArrayList<>();
+		for (String name : names) {
+			HObject object = file.get(name);
+			if (object instanceof Dataset) {
+				((Dataset) object).init();
+				datasets.add((Dataset) object);
+			}
+		}
+		selectedDatasets.setDatasets(datasets);
+		return file;
+	}
+
+	/**
+	 * Open a file for single-writer/multiple-reader (SWMR) access. SWMR access needs a file written
+	 * with the latest file format (superblock version 3) - H5File then silently falls back to a
+	 * plain read-only open and flags the file as read-only (which it does not for SWMR access).
+	 * In that case live mode is switched off.
+	 * @param filename			File to open
+	 * @param selectedDatasets	Selection to switch live mode off for
+	 * @return	Opened file
+	 * @throws Exception
+	 */
+	static H5File openLive(String filename, DatasetSelection selectedDatasets) throws Exception {
+		H5File file = new H5File(filename, HDF5Constants.H5F_ACC_RDONLY | HDF5Constants.H5F_ACC_SWMR_READ);
+		file.setMaxMembers(Integer.MAX_VALUE);
+		file.openLazy();
+		if (file.isReadOnly()) {
+			logger.warning("Unable to open " + filename + " for SWMR access - opened read-only without following the datasets");
+			selectedDatasets.setLive(false);
+		}
+		return file;
+	}
+
+	/**
+	 * Open a dataset as pyramid stack if it has a multi-resolution pyramid (see HDF5Pyramid),
+	 * either in the file itself or in the sidecar file of the file
+	 * @param file		File of the dataset
+	 * @param dataset	2D or 3D dataset
+	 * @return	Pyramid stack or null if the dataset has no pyramid
+	 */
+	private PyramidStackHDF5 openPyramid(H5File file, Dataset dataset) {
+		List<H5File> files = new ArrayList<>();
+		files.add(file);
+		List<Dataset> levels = HDF5Pyramid.getLevels(file, dataset.getFullName());
+		File sidecar = HDF5Pyramid.getSidecarFile(new File(file.getAbsolutePath()));
+		if (levels.isEmpty() && sidecar.exists()) {
+			H5File sidecarFile = new H5File(sidecar.getAbsolutePath(), H5File.READ);
+			try {
+				sidecarFile.openLazy();
+				levels = HDF5Pyramid.getLevels(sidecarFile, dataset.getFullName());
+				if (levels.isEmpty()) {
+					sidecarFile.close();
+				} else {
+					files.add(sidecarFile);
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to open " + sidecar, e);
+			}
+		}
+		if (levels.isEmpty()) {
+			return null;
+		}
+
+		logger.info("Use pyramid with " + levels.size() + " levels");
+		// The stack starts at the full resolution - coarser levels are only used while the image is
+		// shown zoomed out (see followZoom)
+		return new PyramidStackHDF5(files, dataset, levels);
+	}
+
+	/**
+	 * Show slices appended to the dataset of a virtual stack while the file is being written.
+	 * The refresh interval is read from the preferences.
+	 * @param stack	Virtual stack
+	 * @param imp	Image showing the stack
+	 */
+	private void follow(VirtualStackHDF5 stack, ImagePlusHDF5 imp) {
+		long interval = (long) Prefs.get(VirtualStackHDF5.LIVE_INTERVAL_KEY, VirtualStackHDF5.DEFAULT_LIVE_INTERVAL);
+		int[] previous = { stack.getSize() };
+		stack.follow(interval, size -> EventQueue.invokeLater(() -> {
+			// Stay on the newest slice if it is currently shown
+			boolean last = imp.getCurrentSlice() == previous[0];
+			previous[0] = size;
+			imp.updateStackSize();
+			if (last) {
+				imp.setSlice(size);
+			}
+		}));
+	}
+
+	/**
+	 * Read the whole dataset slab wise (in parallel) directly into the slices of the stack.
+	 * No single array holding the whole dataset is needed.
+	 * @param stack		Stack to add the slices to
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @throws Exception
+	 */
+	private void readSlabs(ImageStack stack, Dataset dataset, boolean rgb) throws Exception {
+		readSlabs(stack, dataset, rgb, 1, new Crop());
+	}
+
+	/**
+	 * Read every step-th slice of a region of the dataset slab wise (in parallel) directly into the slices of the stack.
+	 * @param stack		Stack to add the slices to
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @param step		Step between the slices to read
+	 * @param crop		Region to read
+	 * @throws Exception
+	 */
+	private void readSlabs(ImageStack stack, Dataset dataset, boolean rgb, int step, Crop crop) throws Exception {
+		for (Object slice : readSlices(dataset, rgb, step, crop, SlabReader::read)) {
+			stack.addSlice(null, slice);
+		}
+	}
+
+	/**
+	 * Reads the slices of a dataset with a SlabReader
+	 */
+	private interface SliceRead {
+		Object[] read(SlabReader reader) throws Exception;
+	}
+
+	/**
+	 * Read the slices of a region of a dataset with a SlabReader
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @param step		Step between the slices to read
+	 * @param crop		Region to read
+	 * @param read		Read method of the SlabReader
+	 * @return	Pixel arrays of the slices - empty if the datatype is not supported
+	 * @throws Exception
+	 */
+	private Object[] readSlices(Dataset dataset, boolean rgb, int step, Crop crop, SliceRead read) throws Exception {
+		if (!(dataset instanceof H5ScalarDS)) {
+			logger.warning("Datatype not supported");
+			return new Object[0];
+		}
+		try {
+			return read.read(new SlabReader((H5ScalarDS) dataset, rgb, step, crop, Prefs.getThreads()));
+		} catch (UnsupportedOperationException e) {
+			logger.warning("Datatype not supported");
+			return new Object[0];
+		}
+	}
+
+	/**
+	 * Read every step-th slice of a region of a grayscale dataset slab wise (in parallel) and bin
+	 * the slabs while they are read. Only the binned slices are kept in memory.
+	 * @param dataset	Dataset to read (3D or 4D)
+	 * @param step		Step between the slices to read
+	 * @param crop		Region to read
+	 * @param selection	Selection holding the binning
+	 * @return	Stack of the binned slices
+	 * @throws Exception
+	 */
+	private ImageStack readBinned(Dataset dataset, int step, Crop crop, DatasetSelection selection) throws Exception {
+		long[] dimensions = dataset.getDims();
+		long[] region = crop.getCount(dimensions, dimensions.length - 2);
+		int factor = selection.getBinning();
+		logger.info("Binning " + factor + "x" + factor + "x" + selection.getBinningZ() + " (" + selection.getBinningMethod() + ")");
+
+		ImageStack stack = new ImageStack(Binning.getBinnedSize((int) region[region.length - 1], factor),
+				Binning.getBinnedSize((int) region[region.length - 2], factor));
+		for (Object slice : readSlices(dataset, false, step, crop, reader -> reader.readBinned(factor, selection.getBinningZ(), selection.getBinningMethod()))) {
+			stack.addSlice(null, slice);
+		}
+		return stack;
+	}
+
 	/**
 	 * Add slice to image stack
 	 * @param stack		Stack to add slice
@@ -455,48 +821,6 @@ public class HDF5Reader implements PlugIn {
 	}
 	
 
-	/**
-	 * Add RGB slice to image stack
-	 * @param stack		Stack to add slice
-	 * @param dataset	Dataset to create slice from
-	 * @param nRows		Number of rows of the dataset
-	 * @param nColumns	Number of columns of the dataset
-	 */
-	private void addSliceRGB(ImageStack stack, Object dataset, int nRows, int nColumns) {
-		addSliceRGB(stack, dataset, nRows, nColumns, 0);
-	}
-	
-	
-	/**
-	 * Add RGB slice to image stack
-	 * @param stack		Stack to add slice
-	 * @param dataset	Dataset to create slice from
-	 * @param nRows		Number of rows of the dataset
-	 * @param nColumns	Number of columns of the dataset
-	 * @param startIdx	Index of dataset to start to create slice
-	 */
-	private void addSliceRGB(ImageStack stack, Object dataset, int nRows, int nColumns, int startIdx) {
-		int size = nRows*nColumns;
-		Class<?> type = dataset.getClass().getComponentType();
-		
-		Object r = Array.newInstance(type, size);
-		Object g = Array.newInstance(type, size);
-		Object b = Array.newInstance(type, size);
-		
-		for (int row = 0; row < nRows; ++row) {
-			for (int col = 0; col < nColumns; ++col) {
-				int offsetRGB = startIdx + (row * nColumns * 3) + (col * 3);
-				int offset = (row * nColumns) + col;
-				Array.set(r, offset,Array.get(dataset,offsetRGB + 0));
-				Array.set(g, offset,Array.get(dataset,offsetRGB + 1));
-				Array.set(b, offset,Array.get(dataset,offsetRGB + 2));
-			}
-		}
-		stack.addSlice(null, r);
-		stack.addSlice(null, g);
-		stack.addSlice(null, b);
-	}
-
 	public static Map<String,String> parseArguments(String arg){
 
 		/// ImageJ arguments look something like this: "para1=value1 para2=value2 ....."
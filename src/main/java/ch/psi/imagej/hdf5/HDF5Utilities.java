@@ -1,5 +1,6 @@
 package ch.psi.imagej.hdf5;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -167,15 +168,170 @@ public class HDF5Utilities {
 		return datasets;
 	}
 	
+	/**
+	 * Get the chunk size of a dataset
+	 * @param dataset	Dataset
+	 * @return	Chunk size or null if the dataset is not chunked
+	 */
+	public static long[] getChunkSize(Dataset dataset) {
+		// The storage layout is only retrieved while reading the metadata of the dataset
+		try {
+			dataset.getMetadata();
+		} catch (Exception e) {
+			logger.warning("Unable to retrieve storage layout of dataset " + dataset.getFullName());
+			return null;
+		}
+		return dataset.getChunkSize();
+	}
+	
+	/**
+	 * Check whether data read from a dataset can be converted into ImageJ pixels
+	 * @param data	Data array
+	 * @return	True if the data can be converted
+	 */
+	public static boolean isSupported(Object data) {
+		return data instanceof byte[] || data instanceof short[] || data instanceof int[]
+				|| data instanceof long[] || data instanceof float[] || data instanceof double[];
+	}
+	
+	/**
+	 * Copy a slice out of a data array and convert it into ImageJ pixels
+	 * (byte, short or float)
+	 * @param data		Data array
+	 * @param startIdx	Index of the data array to start the slice
+	 * @param size		Size of the slice
+	 * @return	Pixel array or null if the datatype is not supported
+	 */
+	public static Object getSlice(Object data, int startIdx, int size) {
+		if (data instanceof int[]) {
+			return convertToFloat((int[]) data, startIdx, size);
+		} else if (data instanceof long[]) {
+			return convertToFloat((long[]) data, startIdx, size);
+		} else if (data instanceof double[]) {
+			return convertToFloat((double[]) data, startIdx, size);
+		} else if (data instanceof byte[] || data instanceof short[] || data instanceof float[]) {
+			if (startIdx == 0 && Array.getLength(data) == size) {
+				return data;
+			}
+			Object copy = Array.newInstance(data.getClass().getComponentType(), size);
+			System.arraycopy(data, startIdx, copy, 0, size);
+			return copy;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get one channel of interleaved (e.g. RGB) data
+	 * @param data		Interleaved data
+	 * @param startIdx	Index of the first element of the plane to extract the channel from
+	 * @param size		Number of pixels of the plane
+	 * @param channel	Channel to extract
+	 * @param nChannels	Number of interleaved channels
+	 * @return	Pixel array of the channel, with the same type as data
+	 */
+	public static Object getChannel(Object data, int startIdx, int size, int channel, int nChannels) {
+		int offset = startIdx + channel;
+		if (data instanceof byte[]) {
+			byte[] d = (byte[]) data;
+			byte[] c = new byte[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		} else if (data instanceof short[]) {
+			short[] d = (short[]) data;
+			short[] c = new short[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		} else if (data instanceof float[]) {
+			float[] d = (float[]) data;
+			float[] c = new float[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		} else if (data instanceof int[]) {
+			int[] d = (int[]) data;
+			int[] c = new int[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		} else if (data instanceof long[]) {
+			long[] d = (long[]) data;
+			long[] c = new long[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		} else if (data instanceof double[]) {
+			double[] d = (double[]) data;
+			double[] c = new double[size];
+			for (int i = 0, j = offset; i < size; i++, j += nChannels) {
+				c[i] = d[j];
+			}
+			return c;
+		}
+
+		Object c = Array.newInstance(data.getClass().getComponentType(), size);
+		for (int i = 0; i < size; i++) {
+			Array.set(c, i, Array.get(data, offset + i * nChannels));
+		}
+		return c;
+	}
+	
+	/**
+	 * Convert the index of a plane of a 5D (t, c, z, y, x) dataset into the index of the slice
+	 * of a hyperstack, which is ordered (c, z, t) in ImageJ. Indices start at 0.
+	 * @param plane		Index of the plane along the flattened (t, c, z) dimensions
+	 * @param nChannels	Number of channels
+	 * @param nSlices	Number of z slices
+	 * @return	Index of the slice in the stack
+	 */
+	public static int getStackIndex(int plane, int nChannels, int nSlices) {
+		int z = plane % nSlices;
+		int c = (plane / nSlices) % nChannels;
+		int t = plane / (nSlices * nChannels);
+		return (t * nSlices + z) * nChannels + c;
+	}
+
+	/**
+	 * Convert the index of a slice of a hyperstack (ordered (c, z, t) in ImageJ) into the index
+	 * of the plane of a 5D (t, c, z, y, x) dataset. Indices start at 0.
+	 * @param index		Index of the slice in the stack
+	 * @param nChannels	Number of channels
+	 * @param nSlices	Number of z slices
+	 * @return	Index of the plane along the flattened (t, c, z) dimensions
+	 */
+	public static int getPlaneIndex(int index, int nChannels, int nSlices) {
+		int c = index % nChannels;
+		int z = (index / nChannels) % nSlices;
+		int t = index / (nChannels * nSlices);
+		return (t * nChannels + c) * nSlices + z;
+	}
+
 	/**
 	 * Convert double to float array
 	 * @param array 	double array to convert
 	 * @return	Converted float array
 	 */
 	public static float[] convertToFloat(double[] array) {
-		float[] narray = new float[array.length];
-		for (int i = 0; i < array.length; i++) {
-			narray[i] = (float) array[i];
+		return convertToFloat(array, 0, array.length);
+	}
+	
+	/**
+	 * Convert part of a double array to float array
+	 * @param array 	double array to convert
+	 * @param startIdx	Index to start the conversion
+	 * @param size		Number of elements to convert
+	 * @return	Converted float array
+	 */
+	public static float[] convertToFloat(double[] array, int startIdx, int size) {
+		float[] narray = new float[size];
+		for (int i = 0; i < size; i++) {
+			narray[i] = (float) array[startIdx + i];
 		}
 		return narray;
 	}
@@ -187,9 +343,20 @@ public class HDF5Utilities {
 	 * @return	Converted short array
 	 */
 	public static float[] convertToFloat(int[] array) {
-		float[] narray = new float[array.length];
-		for (int i = 0; i < array.length; i++) {
-			narray[i] = array[i];
+		return convertToFloat(array, 0, array.length);
+	}
+	
+	/**
+	 * Convert part of an int array to float array
+	 * @param array 	int array to convert
+	 * @param startIdx	Index to start the conversion
+	 * @param size		Number of elements to convert
+	 * @return	Converted float array
+	 */
+	public static float[] convertToFloat(int[] array, int startIdx, int size) {
+		float[] narray = new float[size];
+		for (int i = 0; i < size; i++) {
+			narray[i] = array[startIdx + i];
 		}
 		return narray;
 	}
@@ -201,9 +368,20 @@ public class HDF5Utilities {
 	 * @return	Converted short array
 	 */
 	public static float[] convertToFloat(long[] array) {
-		float[] narray = new float[array.length];
-		for (int i = 0; i < array.length; i++) {
-			narray[i] = array[i];
+		return convertToFloat(array, 0, array.length);
+	}
+	
+	/**
+	 * Convert part of a long array to float array
+	 * @param array 	long array to convert
+	 * @param startIdx	Index to start the conversion
+	 * @param size		Number of elements to convert
+	 * @return	Converted float array
+	 */
+	public static float[] convertToFloat(long[] array, int startIdx, int size) {
+		float[] narray = new float[size];
+		for (int i = 0; i < size; i++) {
+			narray[i] = array[startIdx + i];
 		}
 		return narray;
 	}
@@ -7,12 +7,14 @@ import hdf.object.FileFormat;
 import hdf.object.Group;
 import hdf.object.h5.H5Datatype;
 import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
 import ij.*;
 import ij.io.*;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
 import ij.gui.*;
 
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +26,26 @@ public class HDF5Writer implements PlugInFilter {
 
 	private static final Logger logger = Logger.getLogger(HDF5Writer.class.getName());
 
+	/** Contiguous (not chunked) dataset - only possible without compression */
+	public static final String CHUNKING_NONE = "None";
+	/** One chunk per slice - best for browsing the slices of a stack */
+	public static final String CHUNKING_SLICE = "Slice";
+	/** Cubic chunks - best for reslicing (e.g. orthogonal views) */
+	public static final String CHUNKING_CUBE = "Cube";
+	public static final String[] CHUNKING = new String[] { CHUNKING_NONE, CHUNKING_SLICE, CHUNKING_CUBE };
+
+	/** Edge length of cubic chunks */
+	private static final int CUBE_SIZE = 64;
+
+	private static final String PREFERENCE_CHUNKING = "hdf5.chunking";
+	private static final String PREFERENCE_COMPRESSION = "hdf5.compression";
+	private static final String PREFERENCE_SHUFFLE = "hdf5.shuffle";
+	private static final String PREFERENCE_SINGLE_DATASET = "hdf5.single";
+
+	private String chunking = CHUNKING_SLICE;
+	private int compression = 0;
+	private boolean shuffle = false;
+
 	public int setup(String arg, ImagePlus imp) {
 		// see http://rsb.info.nih.gov/ij/developer/api/ij/plugin/filter/PlugInFilter.html
 		return DOES_8G + DOES_16 + DOES_32 + DOES_RGB + NO_CHANGES;
@@ -89,12 +111,25 @@ public class HDF5Writer implements PlugInFilter {
 
 			GenericDialog gd = new GenericDialog("Dataset Name");
 			gd.addStringField(imp.getTitle(), "/t$F/channel$C");
+			addStorageOptions(gd);
+			gd.addCheckbox("Single dataset (t, c, z, y, x)", Prefs.get(PREFERENCE_SINGLE_DATASET, false));
 
 			gd.showDialog();
 			if (gd.wasCanceled()) {
 				return;
 			}
 			String formatString = gd.getNextString();
+			readStorageOptions(gd);
+			boolean single = gd.getNextBoolean();
+			Prefs.set(PREFERENCE_SINGLE_DATASET, single);
+			if (single && (formatString.contains("$F") || formatString.contains("$C"))) {
+				IJ.error("The name of a single dataset must not contain $F or $C");
+				return;
+			}
+			if (single && imgColorType == ImagePlus.COLOR_RGB) {
+				IJ.error("RGB hyperstacks cannot be saved as single dataset");
+				return;
+			}
 
 			// Open the file
 			try {
@@ -105,6 +140,14 @@ public class HDF5Writer implements PlugInFilter {
 				}
 				file.open();
 
+				if (single) {
+					if (!writeHyperstack(file, formatString, imp, type)) {
+						IJ.showStatus("Saving canceled");
+					}
+					file.close();
+					return;
+				}
+
 				long[] dimensions = null;
 				if (nSlices > 1) {
 					dimensions = new long[3];
@@ -118,7 +161,8 @@ public class HDF5Writer implements PlugInFilter {
 				}
 
 				// iterate over frames and channels
-				ImageStack stack = imp.getStack();
+				final ImageStack stack = imp.getStack();
+				frames:
 				for (int f = 0; f < nFrames; f++) {
 					for (int c = 0; c < nChannels; c++) {
 						String fullName = formatString;
@@ -140,9 +184,8 @@ public class HDF5Writer implements PlugInFilter {
 						}
 						if (dataset == null) {
 							long[] maxdims = dimensions;
-							long[] chunks = null;
-							int gzip = 0; // no compression
-							dataset = file.createScalarDS(dataSetName, group, type, dimensions, maxdims, chunks, gzip, null);
+							long[] chunks = getChunks(dimensions, chunking, compression, false);
+							dataset = H5ScalarDS.create(dataSetName, group, type, dimensions, maxdims, chunks, compression, shuffle, null, null);
 						}
 						dataset.init();
 
@@ -154,15 +197,12 @@ public class HDF5Writer implements PlugInFilter {
 							Object slice = stack.getPixels(stackIndex);
 							dataset.write(slice);
 						} else {
-							selected[0] = 1;
-							System.arraycopy(dimensions, 1, selected, 1, selected.length - 1);
-							long[] start = dataset.getStartDims();
-							for (int lvl = 0; lvl < nSlices; ++lvl) {
-								start[0] = lvl;
-								int stackIndex = imp.getStackIndex(c + 1, lvl + 1, f + 1);
-
-								Object slice = stack.getPixels(stackIndex);
-								dataset.write(slice);
+							final int channel = c;
+							final int frame = f;
+							SlabWriter writer = new SlabWriter((H5ScalarDS) dataset, dimensions, lvl -> stack.getPixels(imp.getStackIndex(channel + 1, lvl + 1, frame + 1)), false);
+							if (writer.write() < nSlices) {
+								IJ.showStatus("Saving canceled");
+								break frames;
 							}
 						}
 					}
@@ -180,18 +220,24 @@ public class HDF5Writer implements PlugInFilter {
 
 			GenericDialog gd = new GenericDialog("Dataset Name");
 			gd.addStringField(imp.getTitle(), "");
+			addStorageOptions(gd);
+			gd.addCheckbox("Append slices to existing dataset", false);
 			gd.showDialog();
 			if (gd.wasCanceled()) {
 				return;
 			}
 			String varName = gd.getNextString();
+			readStorageOptions(gd);
+			// Appended datasets are always stacks that can grow along the first dimension
+			boolean append = gd.getNextBoolean();
+			boolean stacked = stackSize > 1 || append;
 			if (varName == "") {
 				IJ.error("No data set name given. Plugin canceled!");
 				return;
 			}
 
+			H5File file = null;
 			try {
-				H5File file = null;
 				try {
 					file = (H5File) fileFormat.createFile(filename, FileFormat.FILE_CREATE_OPEN);
 					if (!file.canWrite()) {
@@ -212,7 +258,7 @@ public class HDF5Writer implements PlugInFilter {
 
 				long[] dimensions;
 				if (imgColorType == ImagePlus.COLOR_RGB || imgColorType == ImagePlus.COLOR_256) {
-					if (stackSize == 1) {
+					if (!stacked) {
 						dimensions = new long[3];
 						dimensions[0] = nRows;
 						dimensions[1] = nCols;
@@ -225,7 +271,7 @@ public class HDF5Writer implements PlugInFilter {
 						dimensions[3] = 3;
 					}
 				} else {
-					if (stackSize == 1) {
+					if (!stacked) {
 						dimensions = new long[2];
 						dimensions[0] = nRows;
 						dimensions[1] = nCols;
@@ -245,17 +291,50 @@ public class HDF5Writer implements PlugInFilter {
 				} catch (Exception e) {
 					dataset = null;
 				}
+				long offset = 0;
 				if (dataset == null) {
-					long[] maxdims = dimensions;
-					long[] chunks = null;
-					int gzip = 0; // no compression
-					dataset = file.createScalarDS(datasetName, group, type, dimensions, maxdims, chunks, gzip, null);
+					long[] maxdims = dimensions.clone();
+					String layout = chunking;
+					if (append) {
+						// Unlimited number of slices - requires a chunked dataset
+						maxdims[0] = -1;
+						if (CHUNKING_NONE.equals(layout)) {
+							layout = CHUNKING_SLICE;
+						}
+					}
+					boolean rgb = (imgColorType == ImagePlus.COLOR_RGB || imgColorType == ImagePlus.COLOR_256);
+					long[] chunks = getChunks(dimensions, layout, compression, rgb);
+					dataset = H5ScalarDS.create(datasetName, group, type, dimensions, maxdims, chunks, compression, shuffle, null, null);
+				} else if (append) {
+					dataset.init();
+					long[] existing = dataset.getDims();
+					boolean matches = existing.length == dimensions.length;
+					for (int i = 1; matches && i < dimensions.length; i++) {
+						matches = existing[i] == dimensions[i];
+					}
+					if (!matches) {
+						IJ.error("Slices do not match the dimensions of dataset " + varName);
+						return;
+					}
+
+					// Grow dataset by the slices to append - only possible up to its maximum dimensions
+					// (unlimited, i.e. negative, for datasets created for appending)
+					offset = existing[0];
+					long[] newDimensions = existing.clone();
+					newDimensions[0] = offset + stackSize;
+					long maxSlices = dataset.getMaxDims()[0];
+					if (maxSlices >= 0 && maxSlices < newDimensions[0]) {
+						IJ.error("Dataset " + varName + " cannot be extended - it was not created for appending");
+						return;
+					}
+					((H5ScalarDS) dataset).extend(newDimensions);
+					logger.info("Appending " + stackSize + " slices to " + varName + " at slice " + offset);
 				}
 				dataset.init();
 
 				long[] selected = dataset.getSelectedDims();
-				ImageStack stack = imp.getStack();
-				if (stackSize == 1) {
+				final ImageStack stack = imp.getStack();
+				if (!stacked) {
 					System.arraycopy(dimensions, 0, selected, 0, selected.length);
 
 					Object slice = stack.getPixels(stackSize);
@@ -265,49 +344,135 @@ public class HDF5Writer implements PlugInFilter {
 					dataset.write(slice);
 
 				} else {
-					selected[0] = 1;
-					System.arraycopy(dimensions, 1, selected, 1, selected.length - 1);
-					long[] start = dataset.getStartDims(); // the off set of the
-															// selection
-					for (int lvl = 0; lvl < stackSize; ++lvl) {
-						start[0] = lvl;
-
-						Object slice = stack.getPixels(lvl + 1);
-						if (imgColorType == ImagePlus.COLOR_RGB) {
-							slice = computeRgbSlice((int[]) stack.getPixels(lvl + 1));
-						}
-						dataset.write(slice);
+					SlabWriter writer = new SlabWriter((H5ScalarDS) dataset, dimensions, offset, lvl -> stack.getPixels(lvl + 1), imgColorType == ImagePlus.COLOR_RGB);
+					if (writer.write() < stackSize) {
+						IJ.showStatus("Saving canceled");
 					}
 				}
-
-				file.close();
 			} catch (HDF5Exception e) {
 				logger.log(Level.WARNING, "Caught HDF5Exception", e);
 			} catch (java.io.IOException e) {
 				logger.log(Level.WARNING, "IO Error while writing '" + filename + "'", e);
 			} catch (Exception e) {
 				logger.log(Level.WARNING, "Range Error while writing '" + filename + "'", e);
+			} finally {
+				if (file != null) {
+					try {
+						file.close();
+					} catch (HDF5Exception e) {
+						logger.log(Level.WARNING, "Unable to close '" + filename + "'", e);
+					}
+				}
 			}
 		}
 
 	}
 
+	/**
+	 * Write a hyperstack into one 5D dataset with the dimensions (t, c, z, y, x). The stack is
+	 * written in large hyperslabs along z, which avoids the datasets and groups per frame and channel.
+	 * @param file	File to write to
+	 * @param name	Full name of the dataset
+	 * @param imp	Hyperstack
+	 * @param type	Datatype of the dataset
+	 * @return	Whether all slices were written - false if writing was canceled
+	 * @throws Exception
+	 */
+	private boolean writeHyperstack(H5File file, String name, ImagePlus imp, Datatype type) throws Exception {
+		final int nChannels = imp.getNChannels();
+		final int nSlices = imp.getNSlices();
+		long[] dimensions = new long[] { imp.getNFrames(), nChannels, nSlices, imp.getHeight(), imp.getWidth() };
+
+		String datasetName = HDF5Utilities.getDatasetName(name);
+		String groupName = HDF5Utilities.getGroupDescriptor(name);
+		Group group = HDF5Utilities.createGroup(file, groupName);
+
+		Dataset dataset = null;
+		try {
+			dataset = (Dataset) file.get(groupName + "/" + datasetName);
+		} catch (Exception e) {
+			dataset = null;
+		}
+		if (dataset == null) {
+			long[] chunks = getChunks(dimensions, chunking, compression, false);
+			dataset = H5ScalarDS.create(datasetName, group, type, dimensions, dimensions.clone(), chunks, compression, shuffle, null, null);
+		}
+		dataset.init();
+		if (!Arrays.equals(dataset.getDims(), dimensions)) {
+			throw new IllegalArgumentException("Dataset " + name + " exists with different dimensions");
+		}
+
+		final ImageStack stack = imp.getStack();
+		SlabWriter writer = new SlabWriter((H5ScalarDS) dataset, dimensions, plane -> stack.getPixels(HDF5Utilities.getStackIndex(plane, nChannels, nSlices) + 1), false);
+		return writer.write() == stack.getSize();
+	}
+
+	/**
+	 * Add the options for the storage layout of the datasets to the dialog.
+	 * The options can be passed as macro arguments, e.g. "chunking=Cube compression=4 shuffle"
+	 * @param gd	Dialog
+	 */
+	private void addStorageOptions(GenericDialog gd) {
+		gd.addChoice("Chunking", CHUNKING, Prefs.get(PREFERENCE_CHUNKING, CHUNKING_SLICE));
+		gd.addNumericField("Compression (gzip level 0-9)", Prefs.get(PREFERENCE_COMPRESSION, 0), 0);
+		gd.addCheckbox("Shuffle (before compression)", Prefs.get(PREFERENCE_SHUFFLE, false));
+	}
+
+	private void readStorageOptions(GenericDialog gd) {
+		chunking = gd.getNextChoice();
+		compression = Math.max(0, Math.min(9, (int) gd.getNextNumber()));
+		shuffle = gd.getNextBoolean();
+		Prefs.set(PREFERENCE_CHUNKING, chunking);
+		Prefs.set(PREFERENCE_COMPRESSION, compression);
+		Prefs.set(PREFERENCE_SHUFFLE, shuffle);
+		logger.info("Chunking: " + chunking + " compression: " + compression + " shuffle: " + shuffle);
+	}
+
+	/**
+	 * Determine the chunk size of a dataset
+	 * @param dimensions	Dimensions of the dataset
+	 * @param chunking		Chunk layout (one of CHUNKING)
+	 * @param compression	Compression level - compressed datasets always need to be chunked
+	 * @param rgb			Whether the last dimension of the dataset holds the RGB channels
+	 * @return	Chunk size or null for a contiguous dataset
+	 */
+	static long[] getChunks(long[] dimensions, String chunking, int compression, boolean rgb) {
+		if (CHUNKING_NONE.equals(chunking)) {
+			if (compression <= 0) {
+				return null;
+			}
+			chunking = CHUNKING_SLICE;
+		}
+
+		int rank = dimensions.length;
+		// Index of the row dimension of the image planes
+		int rows = rank - (rgb ? 3 : 2);
+		long[] chunks = new long[rank];
+		for (int i = 0; i < rank; i++) {
+			if (i >= rows) {
+				// Full planes (and all channels) for slice chunks
+				chunks[i] = dimensions[i];
+			} else {
+				chunks[i] = 1;
+			}
+		}
+
+		if (CHUNKING_CUBE.equals(chunking)) {
+			for (int i = Math.max(0, rows - 1); i < rows + 2; i++) {
+				chunks[i] = Math.min(CUBE_SIZE, dimensions[i]);
+			}
+		}
+		return chunks;
+	}
+
 	/**
 	 * Compute the rgb slice
 	 * @param pixels	Original pixels
 	 * @return			Slice with separated RGB values
 	 */
 	private byte[] computeRgbSlice(int[] pixels) {
-		int size = pixels.length;
-		byte[] rgbslice = new byte[size * 3];
-		for (int i = 0; i < size; i++) {
-			int red = (((int[]) pixels)[i] & 0xff0000) >> 16;
-			int green = (((int[]) pixels)[i] & 0x00ff00) >> 8;
-			int blue = ((int[]) pixels)[i] & 0x0000ff;
-			rgbslice[3 * i + 0] = (byte) red;
-			rgbslice[3 * i + 1] = (byte) green;
-			rgbslice[3 * i + 2] = (byte) blue;
-		}
+		byte[] rgbslice = new byte[pixels.length * 3];
+		SlabWriter.computeRgbSlice(pixels, rgbslice, 0);
 		return rgbslice;
 	}
 }
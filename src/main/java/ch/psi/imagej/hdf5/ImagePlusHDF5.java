@@ -1,23 +1,26 @@
 package ch.psi.imagej.hdf5;
 
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.util.logging.Logger;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.ImageWindow;
+import ij.gui.StackWindow;
 
 public class ImagePlusHDF5 extends ImagePlus {
 	
 	
 	private static final Logger logger = Logger.getLogger(ImagePlusHDF5.class.getName());
-	private VirtualStackHDF5 stack;
+	private ImageStack stack;
 	
 	public ImagePlusHDF5(String title, ImageStack stack) {
 		super(title, stack);
-		if(stack instanceof VirtualStackHDF5){
-			logger.info("VirtualStackHDF5");
-			this.stack = (VirtualStackHDF5) stack;
+		if(isHDF5Stack(stack)){
+			logger.info(stack.getClass().getSimpleName());
+			this.stack = stack;
 		}
 		
 	}
@@ -25,7 +28,28 @@ public class ImagePlusHDF5 extends ImagePlus {
 	@Override
 	public void show() {
 		super.show();
-		getWindow().addWindowListener(new WindowListener() {
+		addCloseListener();
+	}
+
+	/**
+	 * Update the window after the number of slices of the stack changed (e.g. of a live stack that
+	 * is refreshed in place - ImagePlus.setStack with the same stack does not notice the change).
+	 * A window of a single slice is replaced by a stack window once there are more slices.
+	 */
+	public void updateStackSize() {
+		ImageWindow window = getWindow();
+		if (window instanceof StackWindow) {
+			((StackWindow) window).updateSliceSelector();
+		} else if (window != null && getStackSize() > 1) {
+			// Replaces (and closes) the current window
+			new StackWindow(this, getCanvas());
+			addCloseListener();
+		}
+	}
+
+	private void addCloseListener() {
+		final ImageWindow window = getWindow();
+		window.addWindowListener(new WindowListener() {
 			
 			@Override
 			public void windowOpened(WindowEvent e) {
@@ -56,8 +80,12 @@ public class ImagePlusHDF5 extends ImagePlus {
 			public void windowClosed(WindowEvent e) {
 //				logger.info("Closed");
 				
+				// Window replaced by another window of the image (see updateStackSize)
+				if(getWindow()!=null && getWindow()!=window){
+					return;
+				}
 				if(stack!=null){
-					stack.close();
+					close(stack);
 				}
 			}
 			
@@ -67,4 +95,37 @@ public class ImagePlusHDF5 extends ImagePlus {
 			}
 		});
 	}
+
+	/**
+	 * Close the virtual stack (and with it the HDF5 file) of an image that is not an ImagePlusHDF5
+	 * (e.g. a CompositeImage) as soon as its window is closed.
+	 * @param imp	Shown image
+	 */
+	public static void closeOnWindowClosed(ImagePlus imp) {
+		final ImageStack stack = imp.getImageStack();
+		if (isHDF5Stack(stack) && imp.getWindow() != null) {
+			imp.getWindow().addWindowListener(new WindowAdapter() {
+				@Override
+				public void windowClosed(WindowEvent e) {
+					close(stack);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Whether a stack is a virtual stack reading from an HDF5 file that needs to be closed
+	 */
+	private static boolean isHDF5Stack(ImageStack stack) {
+		return stack instanceof CachedStackHDF5;
+	}
+
+	/**
+	 * Close a virtual stack reading from an HDF5 file (and with it the file)
+	 */
+	private static void close(ImageStack stack) {
+		if (stack instanceof CachedStackHDF5) {
+			((CachedStackHDF5) stack).close();
+		}
+	}
 }
@@ -0,0 +1,166 @@
+package ch.psi.imagej.hdf5;
+
+import java.lang.reflect.Array;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.Dataset;
+import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
+
+/**
+ * Virtual stack showing a 3D dataset [z][y][x] resliced along y (XZ planes) or x (YZ planes).
+ *
+ * A plane is read as one hyperslab across all z instead of assembling it from every z slice.
+ * Adjacent planes are read together in slabs aligned to the chunks of the dataset, so that
+ * every chunk is only decompressed once while browsing - as long as a slab fits into half of
+ * the slice cache. The rows of the planes are the z slices of the dataset.
+ */
+public class OrthogonalStackHDF5 extends CachedStackHDF5 {
+
+	private static final Logger logger = Logger.getLogger(OrthogonalStackHDF5.class.getName());
+
+	/** XZ planes - one plane per row (y) of the dataset */
+	public static final String XZ = "XZ";
+	/** YZ planes - one plane per column (x) of the dataset */
+	public static final String YZ = "YZ";
+
+	private final H5File file;
+	private final Dataset dataset;
+	private final String orientation;
+	private H5ScalarDS.ReadSession session;
+	// Dimension of the dataset the planes are taken along (1 for XZ, 2 for YZ)
+	private final int axis;
+	// Number of planes read at once
+	private final int slabDepth;
+
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		3D dataset to show
+	 * @param orientation	XZ or YZ
+	 */
+	public OrthogonalStackHDF5(H5File file, Dataset dataset, String orientation) {
+		this(file, dataset, orientation, DEFAULT_CACHE_FRACTION);
+	}
+
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		3D dataset to show
+	 * @param orientation	XZ or YZ
+	 * @param cacheFraction	Fraction of the ImageJ heap used to cache planes (0 disables the cache)
+	 */
+	public OrthogonalStackHDF5(H5File file, Dataset dataset, String orientation, double cacheFraction) {
+		super((int) dataset.getDims()[YZ.equals(orientation) ? 1 : 2], (int) dataset.getDims()[0], cacheFraction);
+		this.file = file;
+		this.dataset = dataset;
+		this.orientation = orientation;
+		this.axis = YZ.equals(orientation) ? 2 : 1;
+
+		long planeSize = (long) getWidth() * getHeight() * Math.min(4, dataset.getDatatype().getDatatypeSize());
+		long budget = cache.getCapacity() / 2;
+
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		if (chunks == null) {
+			// Contiguous datasets are read in a single pass per slab
+			this.slabDepth = (int) Math.min(SlabReader.getSlabDepth(null, planeSize, getSize(), 1), Math.max(1, budget / Math.max(1, planeSize)));
+		} else {
+			// Read all planes crossing a chunk at once - or at least a divisor of the chunk extent
+			int depth = (int) Math.max(1, Math.min(chunks[axis], budget / Math.max(1, planeSize)));
+			while (chunks[axis] % depth != 0) {
+				depth--;
+			}
+			this.slabDepth = depth;
+		}
+		logger.info("Reading " + orientation + " planes in slabs of " + slabDepth + " planes");
+
+		startPrefetching(planeSize);
+	}
+
+	/**
+	 * Read the slab containing a plane and keep the other planes of the slab in the cache
+	 * @param slice	Plane number, 1&lt;=slice&lt;=nslices
+	 * @return	Pixel array of the plane or null if the plane cannot be read
+	 */
+	protected Object readSlice(int slice) {
+		// The read session is shared with the prefetcher thread
+		synchronized (dataset) {
+			try {
+				int first = ((slice - 1) / slabDepth) * slabDepth;
+				int count = Math.min(slabDepth, getSize() - first);
+
+				long[] dimensions = dataset.getDims();
+				long[] start = new long[3];
+				long[] countDims = dimensions.clone();
+				start[axis] = first;
+				countDims[axis] = count;
+
+				if (session == null) {
+					session = ((H5ScalarDS) dataset).openReadSession();
+				}
+				Object slab = session.read(start, countDims);
+				if (!HDF5Utilities.isSupported(slab)) {
+					logger.warning("Datatype not supported");
+					return null;
+				}
+
+				Object pixels = null;
+				for (int i = 0; i < count; i++) {
+					Object plane = HDF5Utilities.getSlice(getPlane(slab, i, count), 0, getWidth() * getHeight());
+					int n = first + i + 1;
+					if (n == slice) {
+						pixels = plane;
+					} else if (!cache.contains(n)) {
+						cache.put(n, plane);
+					}
+				}
+				return pixels;
+			} catch (OutOfMemoryError | Exception e) {
+				logger.log(Level.WARNING, "Unable to read plane", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Extract one plane of a slab
+	 * @param slab	Data of the slab ([z][count][x] for XZ, [z][y][count] for YZ)
+	 * @param index	Index of the plane within the slab
+	 * @param count	Number of planes of the slab
+	 * @return	Data of the plane [z][x] or [z][y]
+	 */
+	private Object getPlane(Object slab, int index, int count) {
+		if (count == 1) {
+			return slab;
+		}
+		if (axis == 2) {
+			// The planes are interleaved within the rows of the slab
+			return HDF5Utilities.getChannel(slab, 0, getWidth() * getHeight(), index, count);
+		}
+		int width = getWidth();
+		Object plane = Array.newInstance(slab.getClass().getComponentType(), width * getHeight());
+		for (int z = 0; z < getHeight(); z++) {
+			System.arraycopy(slab, (z * count + index) * width, plane, z * width, width);
+		}
+		return plane;
+	}
+
+	/** Returns the number of planes in this stack. */
+	public int getSize() {
+		return (int) dataset.getDims()[axis];
+	}
+
+	/** Returns the label of the Nth image. */
+	public String getSliceLabel(int slice) {
+		return (XZ.equals(orientation) ? "y: " : "x: ") + (slice - 1);
+	}
+
+	protected void closeFiles() {
+		synchronized (dataset) {
+			if (session != null) {
+				session.close();
+				session = null;
+			}
+		}
+		close(file);
+	}
+}
@@ -0,0 +1,259 @@
+package ch.psi.imagej.hdf5;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.Timer;
+
+import hdf.object.Dataset;
+import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
+import ij.CommandListener;
+import ij.Executer;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.ImageCanvas;
+
+/**
+ * Virtual stack of a 2D or 3D dataset that has a multi-resolution pyramid (see HDF5Pyramid).
+ *
+ * The stack starts at the full resolution. Once it follows the zoom of a shown image, the slices
+ * are read from the coarsest level that is good enough for the current magnification and expanded
+ * to the full size of the stack. Zoomed out views of large datasets therefore only read a fraction
+ * of the data. Before a command other than a zoom or navigation command is run on the image the
+ * stack switches back to the full resolution, so that measurements, duplicates and filters never
+ * see binned pixels. The slices of the current level are cached and prefetched like in the
+ * VirtualStackHDF5.
+ */
+public class PyramidStackHDF5 extends CachedStackHDF5 {
+
+	private static final Logger logger = Logger.getLogger(PyramidStackHDF5.class.getName());
+
+	/** Interval in milliseconds the magnification of the image is checked at */
+	private static final int ZOOM_INTERVAL = 250;
+
+	/** Zoom, navigation and window commands - they do not use the pixels of the image */
+	private static final Set<String> VIEW_COMMANDS = new HashSet<>(Arrays.asList(
+			"In [+]", "Out [-]", "Original Scale", "View 100%", "To Selection", "Scale to Fit", "Set... ", "Maximize",
+			"Next Slice [>]", "Previous Slice [<]", "Set Slice...", "Start Animation [\\]", "Stop Animation",
+			"Animation Options...", "Put Behind [tab]", "Tile", "Cascade", "Main Window [enter]",
+			"Close", "Close All"));
+
+	private final List<H5File> files;
+	// Datasets of the levels - level 0 is the full resolution dataset
+	private final List<Dataset> levels;
+	private final H5ScalarDS.ReadSession[] sessions;
+	private volatile int level = 0;
+	private Timer zoomTimer;
+	private CommandListener commandListener;
+	// Magnification the zoom following was suspended at for a command - NaN if not suspended
+	private volatile double suspended = Double.NaN;
+
+	/**
+	 * @param files		Files of the datasets - closed when the stack is closed
+	 * @param dataset	Full resolution dataset (2D or 3D)
+	 * @param levels	Datasets of the levels of the pyramid, starting with level 1
+	 */
+	public PyramidStackHDF5(List<H5File> files, Dataset dataset, List<Dataset> levels) {
+		super((int) dataset.getDims()[dataset.getRank() - 1], (int) dataset.getDims()[dataset.getRank() - 2], DEFAULT_CACHE_FRACTION);
+		this.files = files;
+		this.levels = new ArrayList<>();
+		this.levels.add(dataset);
+		this.levels.addAll(levels);
+		this.sessions = new H5ScalarDS.ReadSession[this.levels.size()];
+
+		// Slices of the full resolution dataset limit the number of slices to prefetch
+		long sliceSize = (long) getWidth() * getHeight() * Math.min(4, dataset.getDatatype().getDatatypeSize());
+		startPrefetching(sliceSize);
+		logger.info("Pyramid with " + levels.size() + " levels");
+	}
+
+	/**
+	 * Determine the coarsest level that is good enough for a magnification
+	 * @param magnification	Magnification of the image
+	 * @return	Level
+	 */
+	public int getLevel(double magnification) {
+		int l = 0;
+		while (l + 1 < levels.size() && (1 << (l + 1)) * magnification <= 1.0) {
+			l++;
+		}
+		return l;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Set the level the slices are read from
+	 * @param level	Level (0 is the full resolution)
+	 */
+	public void setLevel(int level) {
+		level = Math.max(0, Math.min(level, levels.size() - 1));
+		if (level != this.level) {
+			if (level == 0) {
+				logger.info("Switching to full resolution");
+			} else {
+				logger.info("Switching to level " + level + " - the slices shown are binned " + (1 << level) + "x");
+			}
+			// Slices of the previous level are not needed anymore
+			getPrefetcher().cancel();
+			cache.clear();
+			this.level = level;
+		}
+	}
+
+	/**
+	 * Follow the magnification of an image showing this stack and switch the level accordingly
+	 * @param imp	Shown image
+	 */
+	public void followZoom(ImagePlus imp) {
+		zoomTimer = new Timer(ZOOM_INTERVAL, e -> {
+			ImageCanvas canvas = imp.getCanvas();
+			if (canvas == null || imp.isLocked()) {
+				return;
+			}
+			double magnification = canvas.getMagnification();
+			if (magnification == suspended) {
+				return;
+			}
+			suspended = Double.NaN;
+			showLevel(imp, getLevel(magnification));
+		});
+		// Commands (and macros) using the pixels work on the full resolution - the zoom is only
+		// followed again once the magnification changes
+		commandListener = command -> {
+			if (level != 0 && !VIEW_COMMANDS.contains(command) && WindowManager.getCurrentImage() == imp) {
+				ImageCanvas canvas = imp.getCanvas();
+				suspended = (canvas != null) ? canvas.getMagnification() : Double.NaN;
+				showLevel(imp, 0);
+			}
+			return command;
+		};
+		Executer.addCommandListener(commandListener);
+		zoomTimer.start();
+	}
+
+	/**
+	 * Switch the level and reload the current slice of the image
+	 */
+	private synchronized void showLevel(ImagePlus imp, int l) {
+		if (l != level) {
+			setLevel(l);
+			imp.getProcessor().setPixels(getPixels(imp.getCurrentSlice()));
+			imp.updateAndDraw();
+		}
+	}
+
+	/**
+	 * Slices of other levels that were still read by the prefetcher when the level was switched
+	 * are ignored
+	 */
+	protected boolean isCurrent(Object pixels) {
+		int l = level;
+		return Array.getLength(pixels) == getLevelWidth(l) * getLevelHeight(l);
+	}
+
+	/**
+	 * Expand the slices of the coarser levels to the full size of the stack
+	 */
+	protected Object toStackPixels(Object pixels) {
+		int length = Array.getLength(pixels);
+		for (int l = 1; l < levels.size(); l++) {
+			int width = getLevelWidth(l);
+			int height = getLevelHeight(l);
+			if (length == width * height) {
+				return Binning.expand(pixels, width, height, 1 << l, getWidth(), getHeight());
+			}
+		}
+		return copy(pixels);
+	}
+
+	protected Object readSlice(int slice) {
+		return readSlice(slice, level);
+	}
+
+	/**
+	 * Read slice of a level from file
+	 * @param slice	Slice number, 1&lt;=slice&lt;=nslices
+	 * @param l		Level
+	 * @return	Pixel array of the slice or null if the slice cannot be read
+	 */
+	private Object readSlice(int slice, int l) {
+		Dataset dataset = levels.get(l);
+		// The read sessions are shared with the prefetcher thread
+		synchronized (dataset) {
+			try {
+				long[] dimensions = dataset.getDims();
+				long[] start = new long[dimensions.length];
+				long[] count = dimensions.clone();
+				if (dimensions.length == 3) {
+					start[0] = slice - 1;
+					count[0] = 1;
+				}
+				if (sessions[l] == null) {
+					sessions[l] = ((H5ScalarDS) dataset).openReadSession();
+				}
+				Object data = sessions[l].read(start, count);
+				if (!HDF5Utilities.isSupported(data)) {
+					logger.warning("Datatype not supported");
+					return null;
+				}
+				return HDF5Utilities.getSlice(data, 0, getLevelWidth(l) * getLevelHeight(l));
+			} catch (OutOfMemoryError | Exception e) {
+				logger.log(Level.WARNING, "Unable to open slice", e);
+			}
+		}
+		return null;
+	}
+
+	private int getLevelWidth(int l) {
+		long[] dimensions = levels.get(l).getDims();
+		return (int) dimensions[dimensions.length - 1];
+	}
+
+	private int getLevelHeight(int l) {
+		long[] dimensions = levels.get(l).getDims();
+		return (int) dimensions[dimensions.length - 2];
+	}
+
+	/** Returns the number of slices in this stack. */
+	public int getSize() {
+		long[] dimensions = levels.get(0).getDims();
+		return (dimensions.length == 3) ? (int) dimensions[0] : 1;
+	}
+
+	/**
+	 * Close HDF5 files
+	 */
+	public void close() {
+		if (zoomTimer != null) {
+			zoomTimer.stop();
+		}
+		if (commandListener != null) {
+			Executer.removeCommandListener(commandListener);
+		}
+		super.close();
+	}
+
+	protected void closeFiles() {
+		for (int l = 0; l < sessions.length; l++) {
+			synchronized (levels.get(l)) {
+				if (sessions[l] != null) {
+					sessions[l].close();
+					sessions[l] = null;
+				}
+			}
+		}
+		for (H5File file : files) {
+			close(file);
+		}
+	}
+}
@@ -3,18 +3,27 @@ package ch.psi.imagej.hdf5;
 import java.awt.Component;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
-import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTree;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeCellRenderer;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
 
 import hdf.object.Dataset;
+import hdf.object.Group;
+import hdf.object.HObject;
+import hdf.object.h5.H5File;
 import javax.swing.JTextField;
 import java.awt.FlowLayout;
 
@@ -22,9 +31,18 @@ public class SelectionPanel extends JPanel {
 
 	private static final long serialVersionUID = 1L;
 
-	private final JList<Dataset> list;
+	private static final Logger logger = Logger.getLogger(SelectionPanel.class.getName());
+
+	private final JTree tree;
+	private final DefaultTreeModel model;
+	private final H5File file;
 	private JCheckBox checkbox;
 	private JCheckBox checkBoxVirtualStack;
+	private JCheckBox checkBoxIndex;
+	private JCheckBox checkBoxLive;
+	private JCheckBox checkBoxCrop;
+	private JCheckBox checkBoxBinning;
+	private JComboBox<String> comboBoxOrientation;
 	private JLabel lblSlice;
 	private JPanel panel;
 	private JTextField textField;
@@ -33,30 +51,97 @@ public class SelectionPanel extends JPanel {
 		this(new ArrayList<Dataset>());
 	}
 	
+	/**
+	 * Panel showing a fixed list of datasets
+	 * @param datasets	Datasets to select from
+	 */
 	public SelectionPanel(List<Dataset> datasets){
-		// Filter datasets that are not potential images / that cannot be displayed
-		List<Dataset> fdatasets = new ArrayList<Dataset>();
-		for(Dataset d: datasets){
-			if(d.getRank()>=2 && d.getRank()<=5){
-				fdatasets.add(d);
-			}
+		this(null, datasets);
+	}
+
+	/**
+	 * Panel showing the hierarchy of a file. The members of a group are only loaded
+	 * from the file when the group is expanded.
+	 * @param file	File opened with H5File.openLazy()
+	 */
+	public SelectionPanel(H5File file){
+		this(file, null, new ArrayList<Dataset>());
+	}
+
+	/**
+	 * Panel showing the datasets of a file as recorded in the dataset index of the file.
+	 * The HDF5 metadata of the file is only accessed for the selected datasets.
+	 * @param file	File opened with H5File.openLazy()
+	 * @param index	Dataset index of the file
+	 */
+	public SelectionPanel(H5File file, DatasetIndex index){
+		this(file, index, new ArrayList<Dataset>());
+	}
+
+	private SelectionPanel(H5File file, List<Dataset> datasets){
+		this(file, null, datasets);
+	}
+
+	private SelectionPanel(H5File file, DatasetIndex index, List<Dataset> datasets){
+		this.file = file;
+
+		GroupNode root = new GroupNode(file == null ? null : (Group) file.getRootObject());
+		model = new DefaultTreeModel(root, true);
+		if (index != null) {
+			addEntries(root, index.getEntries());
+		} else if (file == null) {
+			addDatasets(root, datasets);
+			root.loaded = true;
+		} else {
+			loadMembers(root);
 		}
-		
-		list = new JList<>(new DefaultListModel<Dataset>());
-		list.setListData(fdatasets.toArray(new Dataset[fdatasets.size()]));
-		list.setCellRenderer(new DefaultListCellRenderer() {
+
+		tree = new JTree(model);
+		tree.setRootVisible(false);
+		tree.setShowsRootHandles(true);
+		tree.addTreeWillExpandListener(new TreeWillExpandListener() {
+			@Override
+			public void treeWillExpand(TreeExpansionEvent event) {
+				Object node = event.getPath().getLastPathComponent();
+				if (node instanceof GroupNode && !((GroupNode) node).loaded) {
+					loadMembers((GroupNode) node);
+				}
+			}
+
+			@Override
+			public void treeWillCollapse(TreeExpansionEvent event) {
+			}
+		});
+		tree.setCellRenderer(new DefaultTreeCellRenderer() {
 			private static final long serialVersionUID = 1L;
-			public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus)	{
-				JLabel label = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-				final Dataset d = ((Dataset) value);
-				label.setText(d.getFullName()+" ("+d.getRank()+"D)");
+			public Component getTreeCellRendererComponent(JTree tree, Object value, boolean isSelected, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+				JLabel label = (JLabel) super.getTreeCellRendererComponent(tree, value, isSelected, expanded, leaf, row, hasFocus);
+				Object object = ((DefaultMutableTreeNode) value).getUserObject();
+				if (object instanceof Dataset) {
+					final Dataset d = (Dataset) object;
+					label.setText((file == null ? d.getFullName() : d.getName()) + " (" + d.getRank() + "D)");
+				} else if (object instanceof DatasetIndex.Entry) {
+					final DatasetIndex.Entry e = (DatasetIndex.Entry) object;
+					label.setText(HDF5Utilities.getDatasetName(e.getFullName()) + " (" + e.getRank() + "D)");
+				} else if (object instanceof Group) {
+					label.setText(((Group) object).getName());
+				} else if (object instanceof String) {
+					label.setText((String) object);
+				}
 				return label;
-
 			}
 		});
-		list.setSelectedIndex(0);
-	    
-	    JScrollPane scroll = new JScrollPane(list);
+
+		// Select first dataset
+		for (int i = 0; i < root.getChildCount(); i++) {
+			DefaultMutableTreeNode node = (DefaultMutableTreeNode) root.getChildAt(i);
+			if (node.getUserObject() instanceof Dataset || node.getUserObject() instanceof DatasetIndex.Entry) {
+				tree.setSelectionPath(new TreePath(node.getPath()));
+				break;
+			}
+		}
+		
+	    JScrollPane scroll = new JScrollPane(tree);
 	    scroll.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
 	    
 		setLayout(new BoxLayout(this,BoxLayout.Y_AXIS));
@@ -68,6 +153,25 @@ public class SelectionPanel extends JPanel {
 		checkBoxVirtualStack.setSelected(true);
 		add(checkBoxVirtualStack);
 		
+		checkBoxLive = new JCheckBox("Live - follow file being written (3D virtual stack only)");
+		add(checkBoxLive);
+		
+		JPanel panelOrientation = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		panelOrientation.add(new JLabel("View (3D virtual stack only):"));
+		comboBoxOrientation = new JComboBox<>(new String[] { "XY", OrthogonalStackHDF5.XZ, OrthogonalStackHDF5.YZ });
+		panelOrientation.add(comboBoxOrientation);
+		add(panelOrientation);
+		
+		checkBoxCrop = new JCheckBox("Crop region (2D, 3D and 4D only)");
+		add(checkBoxCrop);
+		
+		checkBoxBinning = new JCheckBox("Bin while reading (3D and 4D only, no virtual stack)");
+		add(checkBoxBinning);
+		
+		checkBoxIndex = new JCheckBox("Cache dataset index");
+		checkBoxIndex.setSelected(DatasetIndex.isEnabled());
+		add(checkBoxIndex);
+		
 		panel = new JPanel();
 		FlowLayout flowLayout = (FlowLayout) panel.getLayout();
 		flowLayout.setAlignment(FlowLayout.LEFT);
@@ -81,8 +185,98 @@ public class SelectionPanel extends JPanel {
 		textField.setColumns(10);
 	}
 	
+	/**
+	 * Load members of a group from the file and add them to the tree
+	 * @param node	Group node
+	 */
+	private void loadMembers(GroupNode node) {
+		Group group = (Group) node.getUserObject();
+		file.loadMembers(group);
+
+		List<Dataset> datasets = new ArrayList<>();
+		for (HObject o : group.getMemberList()) {
+			if (o instanceof Group) {
+				node.add(new GroupNode((Group) o));
+			} else if (o instanceof Dataset) {
+				// Datasets are only initialized once they are shown
+				((Dataset) o).init();
+				datasets.add((Dataset) o);
+			}
+		}
+		addDatasets(node, datasets);
+		node.loaded = true;
+		model.nodeStructureChanged(node);
+		logger.fine("Loaded " + node.getChildCount() + " members of " + group.getFullName());
+	}
+
+	/**
+	 * Add the datasets of an index to the tree
+	 */
+	private void addEntries(DefaultMutableTreeNode root, List<DatasetIndex.Entry> entries) {
+		for (DatasetIndex.Entry entry : entries) {
+			// Filter datasets that are not potential images / that cannot be displayed
+			if (entry.getRank() < 2 || entry.getRank() > 5) {
+				continue;
+			}
+
+			// Find or create the nodes of the groups of the dataset
+			DefaultMutableTreeNode node = root;
+			String[] path = entry.getFullName().replaceAll("^/+", "").split("/");
+			for (int i = 0; i < path.length - 1; i++) {
+				DefaultMutableTreeNode child = null;
+				for (int c = 0; c < node.getChildCount(); c++) {
+					DefaultMutableTreeNode n = (DefaultMutableTreeNode) node.getChildAt(c);
+					if (path[i].equals(n.getUserObject())) {
+						child = n;
+						break;
+					}
+				}
+				if (child == null) {
+					child = new DefaultMutableTreeNode(path[i], true);
+					node.add(child);
+				}
+				node = child;
+			}
+			node.add(new DefaultMutableTreeNode(entry, false));
+		}
+	}
+
+	/**
+	 * Add datasets that are potential images to the node
+	 */
+	private void addDatasets(DefaultMutableTreeNode node, List<Dataset> datasets) {
+		// Filter datasets that are not potential images / that cannot be displayed
+		for(Dataset d: datasets){
+			if(d.getRank()>=2 && d.getRank()<=5){
+				node.add(new DefaultMutableTreeNode(d, false));
+			}
+		}
+	}
+
 	public List<Dataset> getSelectedValues(){
-		return list.getSelectedValuesList();
+		List<Dataset> datasets = new ArrayList<>();
+		TreePath[] paths = tree.getSelectionPaths();
+		if (paths != null) {
+			for (TreePath path : paths) {
+				Object object = ((DefaultMutableTreeNode) path.getLastPathComponent()).getUserObject();
+				if (object instanceof Dataset) {
+					datasets.add((Dataset) object);
+				} else if (object instanceof DatasetIndex.Entry) {
+					// Open dataset of index entry
+					String name = ((DatasetIndex.Entry) object).getFullName();
+					try {
+						HObject dataset = file.get(name);
+						if (dataset instanceof Dataset) {
+							((Dataset) dataset).init();
+							datasets.add((Dataset) dataset);
+						}
+					} catch (Exception e) {
+						logger.warning("Unable to open dataset " + name);
+					}
+				}
+			}
+		}
+		return datasets;
 	}
 	
 	public boolean groupValues(){
@@ -108,4 +302,36 @@ public class SelectionPanel extends JPanel {
 	public boolean useVirtualStack(){
 		return checkBoxVirtualStack.isSelected();
 	}
+
+	public boolean useLive(){
+		return checkBoxLive.isSelected();
+	}
+
+	public boolean useCrop(){
+		return checkBoxCrop.isSelected();
+	}
+
+	public boolean useBinning(){
+		return checkBoxBinning.isSelected();
+	}
+
+	public String getOrientation(){
+		return (String) comboBoxOrientation.getSelectedItem();
+	}
+
+	public boolean useIndex(){
+		return checkBoxIndex.isSelected();
+	}
+
+	/**
+	 * Tree node of a group whose members are loaded on expansion
+	 */
+	private static class GroupNode extends DefaultMutableTreeNode {
+		private static final long serialVersionUID = 1L;
+		private boolean loaded = false;
+
+		public GroupNode(Group group) {
+			super(group, true);
+		}
+	}
 }
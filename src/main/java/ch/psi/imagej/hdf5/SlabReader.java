@@ -0,0 +1,324 @@
+package ch.psi.imagej.hdf5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import hdf.object.h5.H5ScalarDS;
+import ij.IJ;
+
+/**
+ * Reads a dataset into per-slice pixel arrays using several threads.
+ *
+ * The last two dimensions of the dataset (three for RGB datasets) form the planes of the image,
+ * all leading dimensions are flattened into the slices of the stack. The slices are read in slabs
+ * along the innermost leading dimension that are aligned to the chunks of the dataset. Each worker
+ * thread reads slabs through its own dataset handle and converts them directly into slice arrays.
+ * Therefore the whole dataset is never held in one array - the memory needed in addition to the
+ * resulting slices is one slab per thread, and datasets with more than 2^31 elements can be read.
+ *
+ * Optionally only every n-th plane along the slab dimension is read. The planes of a slab are
+ * then read with one strided hyperslab selection. The read can also be restricted to a region
+ * (see Crop) - only the hyperslabs of the region are then read from the file.
+ *
+ * The planes can also be binned while they are read (see readBinned). Every slab is reduced by
+ * the worker that read it, so only the binned slices are held in addition to one slab per thread.
+ */
+public class SlabReader {
+
+	private static final Logger logger = Logger.getLogger(SlabReader.class.getName());
+
+	/** Targeted size of a slab in bytes */
+	private static final long SLAB_SIZE = 16 * 1024 * 1024;
+
+	private final H5ScalarDS dataset;
+	private final int threads;
+	/** Start of the region to read */
+	private final long[] origin;
+	/** Size of the region to read */
+	private final long[] dimensions;
+	private final int nChannels;
+	/** Step between the planes read along the slab dimension */
+	private final int step;
+	/** Number of leading dimensions */
+	private final int nLeading;
+	/** Number of planes read along the slab dimension */
+	private final int depth;
+	/** Number of slabs along the slab dimension */
+	private final int nOuter;
+	private final int nPlanes;
+	private final int planeSize;
+	private final int slabDepth;
+
+	/**
+	 * @param dataset	Dataset to read (at least 3D)
+	 * @param threads	Number of worker threads
+	 */
+	public SlabReader(H5ScalarDS dataset, int threads) {
+		this(dataset, false, threads);
+	}
+
+	/**
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @param threads	Number of worker threads
+	 */
+	public SlabReader(H5ScalarDS dataset, boolean rgb, int threads) {
+		this(dataset, rgb, 1, threads);
+	}
+
+	/**
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @param step		Read only every step-th plane along the slab dimension
+	 * @param threads	Number of worker threads. For a strided read of a contiguous (not chunked) dataset
+	 * 					a single thread is used, the data is then read in one pass through the file.
+	 */
+	public SlabReader(H5ScalarDS dataset, boolean rgb, int step, int threads) {
+		this(dataset, rgb, step, new Crop(), threads);
+	}
+
+	/**
+	 * @param dataset	Dataset to read
+	 * @param rgb		Whether the last dimension of the dataset holds the RGB channels
+	 * @param step		Read only every step-th plane along the slab dimension of the region
+	 * @param crop		Region of the dataset to read
+	 * @param threads	Number of worker threads. For a strided read of a contiguous (not chunked) dataset
+	 * 					a single thread is used, the data is then read in one pass through the file.
+	 */
+	public SlabReader(H5ScalarDS dataset, boolean rgb, int step, Crop crop, int threads) {
+		this.dataset = dataset;
+		this.nChannels = rgb ? 3 : 1;
+		this.step = Math.max(1, step);
+
+		long[] dims = dataset.getDims();
+		this.nLeading = dims.length - (rgb ? 3 : 2);
+		this.origin = crop.getStart(dims, nLeading);
+		this.dimensions = crop.getCount(dims, nLeading);
+		this.planeSize = (int) (dimensions[nLeading] * dimensions[nLeading + 1]);
+		this.depth = (nLeading > 0) ? (int) ((dimensions[nLeading - 1] + this.step - 1) / this.step) : 1;
+
+		long outer = 1;
+		for (int i = 0; i < nLeading - 1; i++) {
+			outer *= dimensions[i];
+		}
+		this.nOuter = (int) outer;
+		this.nPlanes = (int) (outer * depth);
+
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		if (chunks == null && this.step > 1) {
+			threads = 1;
+		}
+		this.threads = Math.max(1, Math.min(threads, nPlanes));
+
+		// Slabs are aligned to the chunks if the chunk depth is a multiple of the step
+		long[] slabChunks = null;
+		if (chunks != null && nLeading > 0 && chunks[nLeading - 1] % this.step == 0) {
+			slabChunks = new long[] { chunks[nLeading - 1] / this.step };
+		}
+		long planeBytes = (long) planeSize * nChannels * dataset.getDatatype().getDatatypeSize();
+		this.slabDepth = getSlabDepth(slabChunks, planeBytes, depth, this.threads);
+	}
+
+	/**
+	 * Determine the number of slices to read at once
+	 * @param chunks	Chunk size of the dataset or null if the dataset is not chunked
+	 * @param sliceSize	Size of a slice in bytes
+	 * @param nSlices	Number of slices of the dataset
+	 * @param threads	Number of worker threads
+	 * @return	Number of slices of a slab
+	 */
+	static int getSlabDepth(long[] chunks, long sliceSize, int nSlices, int threads) {
+		long depth = Math.max(1, SLAB_SIZE / Math.max(1, sliceSize));
+		// Spread small datasets over all threads
+		depth = Math.min(depth, (nSlices + threads - 1) / threads);
+		if (chunks != null && chunks[0] > 1) {
+			// Align slabs to the chunks so that no chunk is read (and decompressed) twice
+			depth = Math.max(1, depth / chunks[0]) * chunks[0];
+		}
+		return (int) Math.max(1, Math.min(depth, nSlices));
+	}
+
+	public int getSlabDepth() {
+		return slabDepth;
+	}
+
+	/**
+	 * @return	Number of slices read (i.e. planes times channels)
+	 */
+	public int getNumberOfSlices() {
+		return nPlanes * nChannels;
+	}
+
+	/**
+	 * Read all slices of the dataset. For RGB datasets every plane results in three
+	 * consecutive slices (red, green, blue).
+	 * @return	Pixel arrays of the slices (byte[], short[] or float[])
+	 * @throws UnsupportedOperationException	If the datatype of the dataset is not supported
+	 * @throws Exception
+	 */
+	public Object[] read() throws Exception {
+		final Object[] slices = new Object[getNumberOfSlices()];
+		readSlabs(slabDepth, (o, z, n, data) -> {
+			int plane = o * depth + z;
+			for (int i = 0; i < n; i++) {
+				for (int c = 0; c < nChannels; c++) {
+					slices[(plane + i) * nChannels + c] = getPlane(data, i, c);
+				}
+			}
+		});
+		return slices;
+	}
+
+	/**
+	 * Read all slices of the dataset binned in blocks of factor x factor pixels and zFactor planes
+	 * along the slab dimension. Pixels and planes beyond the last complete block are dropped.
+	 * For RGB datasets the channels are binned separately.
+	 * @param factor	Binning factor of the planes
+	 * @param zFactor	Number of planes binned along the slab dimension
+	 * @param method	Binning.MEAN, Binning.SUM or Binning.MAX
+	 * @return	Pixel arrays of the binned slices (float[] for Binning.SUM)
+	 * @throws Exception
+	 */
+	public Object[] readBinned(final int factor, int zFactor, final String method) throws Exception {
+		final int width = (int) dimensions[nLeading + 1];
+		final int height = (int) dimensions[nLeading];
+		final int bz = Math.max(1, Math.min(zFactor, depth));
+		final int binnedDepth = depth / bz;
+		final int binnedSize = Binning.getBinnedSize(width, factor) * Binning.getBinnedSize(height, factor);
+		final int n = Binning.getBlockSize(width, height, factor) * bz;
+		final Object[] slices = new Object[nOuter * binnedDepth * nChannels];
+
+		// Slabs hold complete blocks along the slab dimension
+		readSlabs(Math.max(1, slabDepth / bz) * bz, (o, z, count, data) -> {
+			for (int i = 0; i + bz <= count && (z + i) / bz < binnedDepth; i += bz) {
+				int b = o * binnedDepth + (z + i) / bz;
+				for (int c = 0; c < nChannels; c++) {
+					double[] values = Binning.newAccumulator(binnedSize, method);
+					Object type = null;
+					for (int k = 0; k < bz; k++) {
+						type = getPlane(data, i + k, c);
+						Binning.accumulate(type, width, height, factor, values, method);
+					}
+					slices[b * nChannels + c] = Binning.reduce(type, values, n, method);
+				}
+			}
+		});
+		return slices;
+	}
+
+	/**
+	 * Extract the pixels of one plane (and channel) of a slab
+	 * @param data		Data of the slab
+	 * @param index		Index of the plane within the slab
+	 * @param channel	Channel of the plane
+	 */
+	private Object getPlane(Object data, int index, int channel) {
+		int startIdx = index * planeSize * nChannels;
+		if (nChannels == 1) {
+			return HDF5Utilities.getSlice(data, startIdx, planeSize);
+		}
+		Object pixels = HDF5Utilities.getChannel(data, startIdx, planeSize, channel, nChannels);
+		return HDF5Utilities.getSlice(pixels, 0, planeSize);
+	}
+
+	/**
+	 * Handles the data of a slab - called concurrently by the worker threads
+	 */
+	private interface SlabHandler {
+		/**
+		 * @param outer	Index of the outer dimensions
+		 * @param z		Index of the first plane of the slab along the slab dimension
+		 * @param n		Number of planes of the slab
+		 * @param data	Data of the slab
+		 */
+		void handle(int outer, int z, int n, Object data) throws Exception;
+	}
+
+	/**
+	 * Read the region slab by slab using the worker threads
+	 * @param slabDepth	Number of planes of a slab
+	 * @param handler	Handler of the slabs read
+	 * @throws Exception
+	 */
+	private void readSlabs(final int slabDepth, final SlabHandler handler) throws Exception {
+		final int slabsPerOuter = (depth + slabDepth - 1) / slabDepth;
+		final int nSlabs = nOuter * slabsPerOuter;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+
+		logger.info("Reading " + nPlanes + " planes in " + nSlabs + " slabs of " + slabDepth + " planes using " + threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "HDF5 slab reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(() -> {
+				try (H5ScalarDS.ReadSession session = dataset.openReadSession()) {
+					long[] start = origin.clone();
+					long[] count = dimensions.clone();
+					long[] stride = null;
+					if (step > 1 && nLeading > 0) {
+						stride = new long[dimensions.length];
+						Arrays.fill(stride, 1);
+						stride[nLeading - 1] = step;
+					}
+					int slab;
+					while ((slab = next.getAndIncrement()) < nSlabs) {
+						int o = slab / slabsPerOuter;
+						int z = (slab % slabsPerOuter) * slabDepth;
+						int n = Math.min(slabDepth, depth - z);
+
+						// Decompose the index of the outer dimensions
+						int index = o;
+						for (int i = nLeading - 2; i >= 0; i--) {
+							start[i] = index % dimensions[i];
+							count[i] = 1;
+							index /= dimensions[i];
+						}
+						if (nLeading > 0) {
+							start[nLeading - 1] = origin[nLeading - 1] + (long) z * step;
+							count[nLeading - 1] = n;
+						}
+
+						Object data = session.read(start, stride, count);
+						if (!HDF5Utilities.isSupported(data)) {
+							throw new UnsupportedOperationException("Datatype not supported");
+						}
+						handler.handle(o, z, n, data);
+						IJ.showProgress(done.incrementAndGet(), nSlabs);
+					}
+				} catch (Exception e) {
+					// Stop the other workers
+					next.set(nSlabs);
+					throw e;
+				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
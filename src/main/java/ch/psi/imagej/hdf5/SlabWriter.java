@@ -0,0 +1,251 @@
+package ch.psi.imagej.hdf5;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hdf.object.h5.H5ScalarDS;
+import ij.IJ;
+
+/**
+ * Writes the slices of a stack to a dataset in slabs of consecutive slices.
+ *
+ * The last two dimensions of the dataset (three for RGB) form the planes of the slices, all
+ * leading dimensions are flattened into the slices of the stack (e.g. (t, c, z) for a 5D dataset).
+ * Slabs run along the innermost leading dimension.
+ *
+ * Writing is pipelined: a background thread gathers the slices (e.g. from a virtual stack),
+ * converts and packs them into slab buffers, while the calling thread writes the slabs to
+ * the file. The two stages are decoupled by a bounded queue, so at most a few slabs are held
+ * in memory. Writing can be canceled by pressing Esc - the dataset is then shrunk to the slices
+ * written so far (if it is chunked), so that a consistent partial file is left behind.
+ */
+public class SlabWriter {
+
+	private static final Logger logger = Logger.getLogger(SlabWriter.class.getName());
+
+	/** Number of packed slabs waiting to be written */
+	private static final int QUEUE_SIZE = 2;
+
+	private final H5ScalarDS dataset;
+	private final long[] dimensions;
+	private final long offset;
+	private final IntFunction<Object> slices;
+	private final boolean rgb;
+	/** Number of leading dimensions */
+	private final int nLeading;
+	/** Size of the innermost leading dimension (the slab dimension) */
+	private final int depth;
+	private final int nSlices;
+	private final int size;
+	private final int slabDepth;
+
+	/**
+	 * @param dataset		Dataset to write to (slices along the first dimension)
+	 * @param dimensions	Dimensions of the dataset
+	 * @param slices		Function returning the pixels of a slice (starting at 0)
+	 * @param rgb			Whether the slices need to be converted to interleaved RGB values
+	 */
+	public SlabWriter(H5ScalarDS dataset, long[] dimensions, IntFunction<Object> slices, boolean rgb) {
+		this(dataset, dimensions, 0, slices, rgb);
+	}
+
+	/**
+	 * @param dataset		Dataset to write to (slices along the first dimension)
+	 * @param dimensions	Dimensions of the slices to write (the number of slices first)
+	 * @param offset		Index along the first dimension of the dataset to start writing at (e.g. when appending)
+	 * @param slices		Function returning the pixels of a slice (starting at 0)
+	 * @param rgb			Whether the slices need to be converted to interleaved RGB values
+	 */
+	public SlabWriter(H5ScalarDS dataset, long[] dimensions, long offset, IntFunction<Object> slices, boolean rgb) {
+		this.dataset = dataset;
+		this.dimensions = dimensions;
+		this.offset = offset;
+		this.slices = slices;
+		this.rgb = rgb;
+		this.nLeading = Math.max(1, dimensions.length - (rgb ? 3 : 2));
+		this.depth = (int) dimensions[nLeading - 1];
+
+		long n = 1;
+		for (int i = 0; i < nLeading; i++) {
+			n *= dimensions[i];
+		}
+		this.nSlices = (int) n;
+
+		int s = 1;
+		for (int i = nLeading; i < dimensions.length; i++) {
+			s *= dimensions[i];
+		}
+		this.size = s;
+
+		// The number of slices written at once is matched to the chunk depth of the dataset,
+		// or limited by a memory budget for contiguous datasets
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		long[] slabChunks = (chunks != null) ? new long[] { chunks[nLeading - 1] } : null;
+		this.slabDepth = SlabReader.getSlabDepth(slabChunks, (long) size * dataset.getDatatype().getDatatypeSize(), depth, 1);
+	}
+
+	public int getSlabDepth() {
+		return slabDepth;
+	}
+
+	/**
+	 * Write all slices
+	 * @return	Number of slices written - less than the number of slices if writing was canceled
+	 * @throws Exception
+	 */
+	public int write() throws Exception {
+		logger.info("Writing " + nSlices + " slices in slabs of " + slabDepth + " slices");
+
+		final BlockingQueue<Slab> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		final Slab end = new Slab(nSlices, 0, null);
+		final Throwable[] error = new Throwable[1];
+
+		Thread packer = new Thread(() -> {
+			try {
+				// Slabs do not cross the outer dimensions
+				for (int outer = 0; outer < nSlices; outer += depth) {
+					for (int z = 0; z < depth; z += slabDepth) {
+						queue.put(pack(outer + z, Math.min(slabDepth, depth - z)));
+					}
+				}
+				queue.put(end);
+			} catch (InterruptedException e) {
+				// Writing was stopped
+			} catch (Throwable t) {
+				error[0] = t;
+				queue.clear();
+				queue.offer(end);
+			}
+		}, "HDF5 slab packer");
+		packer.setDaemon(true);
+		packer.start();
+
+		int written = 0;
+		boolean canceled = false;
+		try (H5ScalarDS.WriteSession session = dataset.openWriteSession()) {
+			long[] start = new long[dimensions.length];
+			long[] count = dimensions.clone();
+			while (true) {
+				Slab slab = queue.take();
+				if (slab == end) {
+					break;
+				}
+
+				// Decompose the index of the outer dimensions
+				int outer = slab.first / depth;
+				for (int i = nLeading - 2; i >= 0; i--) {
+					start[i] = outer % dimensions[i];
+					count[i] = 1;
+					outer /= dimensions[i];
+				}
+				start[nLeading - 1] = slab.first % depth;
+				count[nLeading - 1] = slab.count;
+				start[0] += offset;
+				session.write(start, count, slab.buffer);
+				written = slab.first + slab.count;
+				IJ.showProgress(written, nSlices);
+
+				if (IJ.escapePressed()) {
+					IJ.resetEscape();
+					canceled = true;
+					break;
+				}
+			}
+		} finally {
+			packer.interrupt();
+			packer.join();
+		}
+
+		if (error[0] instanceof Exception) {
+			throw (Exception) error[0];
+		} else if (error[0] instanceof Error) {
+			throw (Error) error[0];
+		}
+
+		if (canceled) {
+			logger.info("Writing canceled after " + written + " of " + nSlices + " slices");
+			truncate(written);
+		}
+		return written;
+	}
+
+	/**
+	 * Pack consecutive slices into one buffer
+	 * @param first	First slice (starting at 0)
+	 * @param n		Number of slices
+	 */
+	private Slab pack(int first, int n) {
+		// Slices of virtual stacks are read from file - the first one is only fetched once
+		Object firstSlice = slices.apply(first);
+		Class<?> type = rgb ? byte.class : firstSlice.getClass().getComponentType();
+		Object buffer = Array.newInstance(type, n * size);
+		for (int i = 0; i < n; i++) {
+			Object slice = (i == 0) ? firstSlice : slices.apply(first + i);
+			if (rgb) {
+				computeRgbSlice((int[]) slice, (byte[]) buffer, i * size);
+			} else {
+				System.arraycopy(slice, 0, buffer, i * size, size);
+			}
+		}
+		return new Slab(first, n, buffer);
+	}
+
+	/**
+	 * Shrink the dataset to the slices written. Only chunked datasets can be resized -
+	 * the remaining slices of contiguous datasets keep the fill value. For datasets with
+	 * several leading dimensions the first dimension is shrunk to the completely written
+	 * indices (e.g. time points).
+	 * @param written	Number of slices written
+	 */
+	private void truncate(int written) {
+		long complete = written / (nSlices / dimensions[0]);
+		if (offset + complete <= 0 || HDF5Utilities.getChunkSize(dataset) == null) {
+			logger.warning("Dataset " + dataset.getFullName() + " is incomplete - only " + written + " slices were written");
+			return;
+		}
+		long[] dims = dimensions.clone();
+		dims[0] = offset + complete;
+		try {
+			dataset.extend(dims);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to shrink dataset " + dataset.getFullName(), e);
+		}
+	}
+
+	/**
+	 * Compute the rgb slice into a buffer
+	 * @param pixels	Original pixels
+	 * @param rgbslice	Buffer for the separated RGB values
+	 * @param offset	Index of the buffer to start at
+	 */
+	static void computeRgbSlice(int[] pixels, byte[] rgbslice, int offset) {
+		int size = pixels.length;
+		for (int i = 0; i < size; i++) {
+			int red = (pixels[i] & 0xff0000) >> 16;
+			int green = (pixels[i] & 0x00ff00) >> 8;
+			int blue = pixels[i] & 0x0000ff;
+			rgbslice[offset + 3 * i + 0] = (byte) red;
+			rgbslice[offset + 3 * i + 1] = (byte) green;
+			rgbslice[offset + 3 * i + 2] = (byte) blue;
+		}
+	}
+
+	/**
+	 * Consecutive slices packed into one buffer
+	 */
+	private static class Slab {
+		private final int first;
+		private final int count;
+		private final Object buffer;
+
+		public Slab(int first, int count, Object buffer) {
+			this.first = first;
+			this.count = count;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package ch.psi.imagej.hdf5;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache for slice pixel arrays. The cache is bounded by
+ * a memory budget in bytes - if adding a slice exceeds the budget the least
+ * recently accessed slices are evicted.
+ */
+public class SliceCache {
+
+	private final LinkedHashMap<Integer, Object> slices = new LinkedHashMap<>(16, 0.75f, true);
+	private final long capacity;
+	private long size = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity	Maximum number of bytes to be held by the cache
+	 */
+	public SliceCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get slice from cache
+	 * @param slice	Slice number
+	 * @return	Pixel array of the slice or null if the slice is not cached
+	 */
+	public synchronized Object get(int slice) {
+		Object pixels = slices.get(slice);
+		if (pixels == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return pixels;
+	}
+
+	/**
+	 * Add slice to cache. Slices that are bigger than the capacity of the cache are not cached.
+	 * @param slice		Slice number
+	 * @param pixels	Pixel array of the slice
+	 */
+	public synchronized void put(int slice, Object pixels) {
+		long bytes = sizeOf(pixels);
+		if (bytes > capacity) {
+			return;
+		}
+
+		Object previous = slices.remove(slice);
+		if (previous != null) {
+			size -= sizeOf(previous);
+		}
+
+		// Evict least recently used slices until the new slice fits
+		Iterator<Map.Entry<Integer, Object>> iterator = slices.entrySet().iterator();
+		while (size + bytes > capacity && iterator.hasNext()) {
+			size -= sizeOf(iterator.next().getValue());
+			iterator.remove();
+		}
+
+		slices.put(slice, pixels);
+		size += bytes;
+	}
+
+	/**
+	 * Get slice from cache without counting a hit/miss
+	 * @param slice	Slice number
+	 * @return	Pixel array of the slice or null if the slice is not cached
+	 */
+	public synchronized Object peek(int slice) {
+		return slices.get(slice);
+	}
+
+	/**
+	 * Check whether slice is cached. This does neither count as hit/miss nor
+	 * change the access order of the cache.
+	 * @param slice	Slice number
+	 * @return	True if slice is in the cache
+	 */
+	public synchronized boolean contains(int slice) {
+		return slices.containsKey(slice);
+	}
+
+	/**
+	 * Remove all slices from the cache
+	 */
+	public synchronized void clear() {
+		slices.clear();
+		size = 0;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return	Number of bytes currently held by the cache
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return	Number of slices currently held by the cache
+	 */
+	public synchronized int getNumberOfSlices() {
+		return slices.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Compute the memory size of a primitive pixel array
+	 * @param pixels	Pixel array
+	 * @return	Size in bytes
+	 */
+	public static long sizeOf(Object pixels) {
+		long length = Array.getLength(pixels);
+		Class<?> type = pixels.getClass().getComponentType();
+		if (type == byte.class) {
+			return length;
+		} else if (type == short.class) {
+			return length * 2;
+		} else if (type == long.class || type == double.class) {
+			return length * 8;
+		}
+		return length * 4;
+	}
+}
@@ -0,0 +1,175 @@
+package ch.psi.imagej.hdf5;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads slices ahead of the current position of a virtual stack into its slice cache.
+ *
+ * The prefetcher follows the scroll direction and speed of the user (i.e. the sequence
+ * of accessed slices) and reads the next slices in that direction on background threads.
+ * Pending prefetches are cancelled if the user jumps to a different position or reverses
+ * the direction.
+ */
+public class SlicePrefetcher {
+
+	private static final Logger logger = Logger.getLogger(SlicePrefetcher.class.getName());
+
+	/** Time in seconds to read ahead at the current scroll speed */
+	private static final double LOOKAHEAD_TIME = 1.0;
+	private static final int MIN_AHEAD = 2;
+
+	private final SliceCache cache;
+	private final IntFunction<Object> reader;
+	private int numberOfSlices;
+	private final int maxAhead;
+	private final ExecutorService executor;
+	private final Map<Integer, Future<?>> pending = new ConcurrentHashMap<>();
+
+	private int lastSlice = -1;
+	private long lastAccess = 0;
+	private int direction = 0;
+	// Slices per second
+	private double speed = 0;
+
+	/**
+	 * @param cache				Cache to prefetch slices into
+	 * @param reader			Function reading a slice from file
+	 * @param numberOfSlices	Number of slices of the stack
+	 * @param maxAhead			Maximum number of slices to read ahead
+	 * @param threads			Number of worker threads
+	 */
+	public SlicePrefetcher(SliceCache cache, IntFunction<Object> reader, int numberOfSlices, int maxAhead, int threads) {
+		this.cache = cache;
+		this.reader = reader;
+		this.numberOfSlices = numberOfSlices;
+		this.maxAhead = maxAhead;
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "HDF5 slice prefetcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Notify the prefetcher that a slice was accessed. This schedules the prefetch of the next
+	 * slices in scroll direction.
+	 * @param slice	Accessed slice, 1&lt;=slice&lt;=nslices
+	 */
+	public synchronized void accessed(int slice) {
+		if (maxAhead <= 0 || executor.isShutdown()) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		int delta = slice - lastSlice;
+		int step = Math.abs(delta);
+		int newDirection = Integer.signum(delta);
+
+		if (lastSlice < 0 || step > maxAhead || newDirection != direction) {
+			// Jump or change of direction - slices scheduled so far are not needed anymore
+			cancel();
+			speed = 0;
+		} else if (step > 0) {
+			double seconds = Math.max((now - lastAccess) / 1e9, 1e-3);
+			double currentSpeed = step / seconds;
+			speed = (speed == 0) ? currentSpeed : 0.5 * speed + 0.5 * currentSpeed;
+		}
+
+		lastSlice = slice;
+		lastAccess = now;
+		direction = newDirection;
+
+		if (direction == 0) {
+			return;
+		}
+
+		int ahead = Math.max(MIN_AHEAD, Math.min(maxAhead, (int) Math.ceil(speed * LOOKAHEAD_TIME / step)));
+		for (int i = 1; i <= ahead; i++) {
+			int next = slice + i * step * direction;
+			if (next < 1 || next > numberOfSlices) {
+				break;
+			}
+			if (pending.containsKey(next) || cache.contains(next)) {
+				continue;
+			}
+			// Register the task before it is started - it removes itself from pending when done, unless
+			// the slice was scheduled again after a cancel() while the task was still running
+			FutureTask<Void> task = new FutureTask<Void>(() -> prefetch(next), null) {
+				@Override
+				protected void done() {
+					pending.remove(next, this);
+				}
+			};
+			pending.put(next, task);
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Update the number of slices of the stack, e.g. when slices were appended to the dataset
+	 * @param numberOfSlices	Number of slices of the stack
+	 */
+	public synchronized void setNumberOfSlices(int numberOfSlices) {
+		this.numberOfSlices = numberOfSlices;
+	}
+
+	/**
+	 * Wait for a pending prefetch of a slice to finish
+	 * @param slice	Slice to wait for
+	 */
+	public void await(int slice) {
+		Future<?> future = pending.get(slice);
+		if (future != null && !future.isCancelled()) {
+			try {
+				future.get();
+			} catch (Exception e) {
+				// Slice will be read synchronously
+			}
+		}
+	}
+
+	/**
+	 * Cancel all pending prefetches that did not start yet
+	 */
+	public synchronized void cancel() {
+		for (Future<?> future : pending.values()) {
+			future.cancel(false);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Stop prefetching and wait for running reads to finish
+	 */
+	public void shutdown() {
+		cancel();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void prefetch(int slice) {
+		try {
+			if (!cache.contains(slice)) {
+				Object pixels = reader.apply(slice);
+				if (pixels != null) {
+					cache.put(slice, pixels);
+				}
+			}
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Unable to prefetch slice " + slice, e);
+		}
+	}
+}
@@ -1,82 +1,181 @@
 package ch.psi.imagej.hdf5;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import hdf.object.Dataset;
 import hdf.object.h5.H5File;
-import ij.ImageStack;
-import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
-
-public class VirtualStackHDF5 extends ImageStack {
+import hdf.object.h5.H5ScalarDS;
+
+/**
+ * Virtual stack reading the slices of a dataset on demand.
+ *
+ * The last two dimensions of the dataset (three for RGB datasets) form the planes of the image.
+ * The leading dimensions of 4D and 5D datasets are mapped onto the (c, z, t) index of the stack,
+ * i.e. for a dataset with dimensions [t][z][y][x] (or [t][z][y][x][rgb]) the stack index is
+ * c + z*nChannels + t*nChannels*nSlices. The channels of RGB datasets are de-interleaved when
+ * a plane is read. 5D grayscale datasets are (t, c, z, y, x) hyperstacks - their planes are
+ * reordered into the (c, z, t) order of the stack.
+ *
+ * The stack can be restricted to a region of the dataset (see Crop). Only the hyperslabs of the
+ * region are then read - the size of the stack is the size of the region.
+ */
+public class VirtualStackHDF5 extends CachedStackHDF5 {
 	
 	
 	private static final Logger logger = Logger.getLogger(VirtualStackHDF5.class.getName());
 	
+	/** Preferences key of the refresh interval (in milliseconds) of live stacks */
+	public static final String LIVE_INTERVAL_KEY = "hdf5.live.interval";
+	public static final long DEFAULT_LIVE_INTERVAL = 1000;
+	
 	private int bitDepth = 0;
 	private Dataset dataset;
 	private H5File file;
+	private H5ScalarDS.ReadSession session;
+	// Number of planes read at once - matches the chunk depth of chunked datasets
+	private final int slabDepth;
+	// Size of the HDF5 chunk cache for datasets whose chunks are too deep to be read as a whole
+	private long chunkCacheSize = 0;
+	// Number of interleaved channels of the planes (3 for RGB datasets)
+	private final int nChannels;
+	// Number of leading dimensions (i.e. dimensions that are not part of a plane)
+	private final int nLeading;
+	// Whether the leading dimensions are (t, c, z) of a hyperstack
+	private final boolean hyperstack;
+	// Region of the dataset shown
+	private final Crop crop;
+	// Periodically refreshes the extent of a dataset that is being written
+	private ScheduledExecutorService follower;
 	
 	public VirtualStackHDF5(H5File file, Dataset dataset){
-		super((int) dataset.getDims()[2], (int) dataset.getDims()[1]);
-		this.dataset = dataset;
-		this.file = file;
+		this(file, dataset, DEFAULT_CACHE_FRACTION);
 	}
 	
-	/** Does noting. */
-	public void addSlice(String sliceLabel, Object pixels) {
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		Dataset to show
+	 * @param cacheFraction	Fraction of the ImageJ heap used to cache slices (0 disables the cache)
+	 */
+	public VirtualStackHDF5(H5File file, Dataset dataset, double cacheFraction){
+		this(file, dataset, false, cacheFraction);
 	}
-
-	/** Does nothing.. */
-	public void addSlice(String sliceLabel, ImageProcessor ip) {
+	
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		Dataset (3D, 4D or 5D) to show
+	 * @param rgb			Whether the last dimension of the dataset holds the RGB channels
+	 */
+	public VirtualStackHDF5(H5File file, Dataset dataset, boolean rgb){
+		this(file, dataset, rgb, DEFAULT_CACHE_FRACTION);
 	}
-
-	/** Does noting. */
-	public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+	
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		Dataset (3D, 4D or 5D) to show
+	 * @param rgb			Whether the last dimension of the dataset holds the RGB channels
+	 * @param cacheFraction	Fraction of the ImageJ heap used to cache slices (0 disables the cache)
+	 */
+	public VirtualStackHDF5(H5File file, Dataset dataset, boolean rgb, double cacheFraction){
+		this(file, dataset, rgb, new Crop(), cacheFraction);
 	}
-
-	/** Does noting. */
-	public void deleteSlice(int n) {
+	
+	/**
+	 * @param file			HDF5 file handle
+	 * @param dataset		Dataset (3D, 4D or 5D) to show
+	 * @param rgb			Whether the last dimension of the dataset holds the RGB channels
+	 * @param crop			Region of the dataset to show
+	 * @param cacheFraction	Fraction of the ImageJ heap used to cache slices (0 disables the cache)
+	 */
+	public VirtualStackHDF5(H5File file, Dataset dataset, boolean rgb, Crop crop, double cacheFraction){
+		super((int) getRegion(dataset, rgb, crop)[dataset.getRank() - (rgb ? 2 : 1)], (int) getRegion(dataset, rgb, crop)[dataset.getRank() - (rgb ? 3 : 2)], cacheFraction);
+		this.dataset = dataset;
+		this.file = file;
+		this.crop = crop;
+		this.nChannels = rgb ? 3 : 1;
+		this.nLeading = dataset.getRank() - (rgb ? 3 : 2);
+		this.hyperstack = !rgb && nLeading == 3;
+		
+		long sliceSize = (long) getWidth() * getHeight() * Math.min(4, dataset.getDatatype().getDatatypeSize());
+		
+		// Read chunked datasets in chunk-aligned slabs so that every chunk is only
+		// decompressed once - as long as a slab easily fits into the cache
+		long[] chunks = HDF5Utilities.getChunkSize(dataset);
+		long slabChunk = (chunks != null) ? chunks[nLeading - 1] : 1;
+		if (slabChunk > 1 && slabChunk * nChannels * sliceSize <= cache.getCapacity() / 2) {
+			this.slabDepth = (int) slabChunk;
+			logger.info("Reading chunked dataset in slabs of " + slabDepth + " slices");
+		} else {
+			this.slabDepth = 1;
+			
+			// Keep the (decompressed) chunks intersecting a plane in the chunk cache of the HDF5
+			// library, so that deep chunks are not decompressed again for every plane
+			if (slabChunk > 1) {
+				long[] dimensions = dataset.getDims();
+				long size = dataset.getDatatype().getDatatypeSize();
+				for (int i = 0; i < chunks.length; i++) {
+					size *= (i < nLeading) ? chunks[i] : ((dimensions[i] + chunks[i] - 1) / chunks[i]) * chunks[i];
+				}
+				if (size <= cache.getCapacity() / 2) {
+					this.chunkCacheSize = size;
+					logger.info("Using chunk cache of " + size + " bytes");
+				}
+			}
+		}
+		
+		startPrefetching(sliceSize);
 	}
 
-	/** Does noting. */
-	public void deleteLastSlice() {
+	protected Object readSlice(int slice) {
+		// The dataset and its read session are shared with the prefetcher threads
+		synchronized (dataset) {
+			return readSliceFromDataset(slice);
+		}
 	}
 
-	public Object getPixels(int slice) {
+	private Object readSliceFromDataset(int slice) {
 		try {
-			long[] dimensions = dataset.getDims();
+			// Indexing at image J starts at 1
+			int plane = toPlane((slice - 1) / nChannels);
+			int depth = getDepth();
+			int outer = plane / depth;
+			int z = plane % depth;
 
-			// Select what to readout
-			long[] selected = dataset.getSelectedDims();
-			selected[0] = 1;
-			selected[1] = dimensions[1];
-			selected[2] = dimensions[2];
-
-			long[] start = dataset.getStartDims();
-			start[0] = slice-1; // Indexing at image J starts at 1
-
-			Object wholeDataset = dataset.read();
-
-			if (wholeDataset instanceof byte[]) {
-				return (byte[]) wholeDataset;
-			} else if (wholeDataset instanceof short[]) {
-				return (short[]) wholeDataset;
-			} else if (wholeDataset instanceof int[]) {
-				return HDF5Utilities.convertToFloat((int[]) wholeDataset);
-			} else if (wholeDataset instanceof long[]) {
-				return HDF5Utilities.convertToFloat((long[]) wholeDataset);
-			} else if (wholeDataset instanceof float[]) {
-				return (float[]) wholeDataset;
-			} else if (wholeDataset instanceof double[]) {
-				return HDF5Utilities.convertToFloat((double[]) wholeDataset);
-			} else {
-				logger.warning("Datatype not supported");
+			// Read the whole chunk-aligned slab the slice is in and keep the
+			// neighbouring slices (and the other channels) in the cache.
+			// The slabs are aligned in the dataset, not in the region.
+			int offset = (int) crop.getStart(dataset.getDims(), nLeading)[nLeading - 1];
+			int first = ((offset + z) / slabDepth) * slabDepth - offset;
+			int slabStart = Math.max(0, first);
+			int count = Math.min(first + slabDepth, depth) - slabStart;
+			Object slab = readSlab(outer, slabStart, count);
+			if (slab == null) {
+				return null;
+			}
+
+			int size = getWidth() * getHeight();
+			Object pixels = null;
+			for (int i = 0; i < count; i++) {
+				for (int c = 0; c < nChannels; c++) {
+					int n = toIndex(outer * depth + slabStart + i) * nChannels + c + 1;
+					Object p;
+					if (nChannels == 1) {
+						p = HDF5Utilities.getSlice(slab, i * size, size);
+					} else {
+						p = HDF5Utilities.getSlice(HDF5Utilities.getChannel(slab, i * size * nChannels, size, c, nChannels), 0, size);
+					}
+					if (n == slice) {
+						pixels = p;
+					} else if (!cache.contains(n)) {
+						cache.put(n, p);
+					}
+				}
 			}
+			return pixels;
 		} catch (OutOfMemoryError | Exception e) {
 			logger.log(Level.WARNING, "Unable to open slice", e);
 		}
@@ -85,69 +184,162 @@ public class VirtualStackHDF5 extends ImageStack {
 	}
 
 	/**
-	 * Assigns a pixel array to the specified slice, were 1<=n<=nslices.
+	 * Size of the region of a dataset shown
 	 */
-	public void setPixels(Object pixels, int n) {
+	private static long[] getRegion(Dataset dataset, boolean rgb, Crop crop) {
+		return crop.getCount(dataset.getDims(), dataset.getRank() - (rgb ? 3 : 2));
 	}
 
 	/**
-	 * Returns an ImageProcessor for the specified slice, were 1<=n<=nslices.
-	 * Returns null if the stack is empty.
+	 * Convert the index of a plane of the stack (starting at 0) into the index of the plane along
+	 * the flattened leading dimensions of the region
 	 */
-	public ImageProcessor getProcessor(int slice) {
-		
-		long[] dimensions = dataset.getDims();
-		final Object pixels = getPixels(slice);
-		
-		// Todo support more ImageProcessor types
-		ImageProcessor ip;		
-		
-		if (pixels instanceof byte[]){
-			ip = new ByteProcessor((int) dimensions[2], (int) dimensions[1]);
+	private int toPlane(int index) {
+		if (!hyperstack) {
+			return index;
 		}
-		else if (pixels instanceof short[]){
-			ip = new ShortProcessor((int) dimensions[2], (int) dimensions[1]);
+		long[] dimensions = dataset.getDims();
+		return HDF5Utilities.getPlaneIndex(index, (int) dimensions[1], getDepth());
+	}
+
+	/**
+	 * Convert the index of a plane along the flattened leading dimensions of the region into
+	 * the index of the plane of the stack (starting at 0)
+	 */
+	private int toIndex(int plane) {
+		if (!hyperstack) {
+			return plane;
 		}
-		else if (pixels instanceof int[]){
-			ip = new ColorProcessor((int) dimensions[2], (int) dimensions[1]);
+		long[] dimensions = dataset.getDims();
+		return HDF5Utilities.getStackIndex(plane, (int) dimensions[1], getDepth());
+	}
+
+	/**
+	 * Read consecutive planes from the dataset
+	 * @param outer	Index of the outer dimensions (e.g. time point of a 4D dataset)
+	 * @param start	Index of the first plane of the region along the innermost leading dimension (starting at 0)
+	 * @param count	Number of planes to read
+	 * @return	Data of the planes or null if the datatype is not supported
+	 */
+	private Object readSlab(int outer, int start, int count) throws Exception {
+		long[] dimensions = dataset.getDims();
+		long[] startDims = crop.getStart(dimensions, nLeading);
+		long[] countDims = crop.getCount(dimensions, nLeading);
+
+		// Decompose the index of the outer dimensions
+		for (int i = nLeading - 2; i >= 0; i--) {
+			startDims[i] = outer % dimensions[i];
+			countDims[i] = 1;
+			outer /= dimensions[i];
 		}
-		else if (pixels instanceof float[]){
-			ip = new FloatProcessor((int) dimensions[2], (int) dimensions[1]);
+		startDims[nLeading - 1] += start;
+		countDims[nLeading - 1] = count;
+
+		Object data;
+		if (dataset instanceof H5ScalarDS) {
+			// Keep the dataset open across reads
+			if (session == null) {
+				session = ((H5ScalarDS) dataset).openReadSession(chunkCacheSize);
+			}
+			data = session.read(startDims, countDims);
+		} else {
+			// Select what to readout
+			System.arraycopy(countDims, 0, dataset.getSelectedDims(), 0, countDims.length);
+			System.arraycopy(startDims, 0, dataset.getStartDims(), 0, startDims.length);
+
+			data = dataset.read();
 		}
-		else {
-			throw new IllegalArgumentException("Unknown stack type");
+
+		if (!HDF5Utilities.isSupported(data)) {
+			logger.warning("Datatype not supported");
+			return null;
 		}
-		
-		ip.setPixels(pixels);
-		return ip;
+		return data;
 	}
 
 	/** Returns the number of slices in this stack. */
 	public int getSize() {
-		return (int) this.dataset.getDims()[0];
-	}
-
-	/** Returns the label of the Nth image. */
-	public String getSliceLabel(int slice) {
-		return "Slice: "+slice;
+		long[] dimensions = crop.getCount(dataset.getDims(), nLeading);
+		long size = nChannels;
+		for (int i = 0; i < nLeading; i++) {
+			size *= dimensions[i];
+		}
+		return (int) size;
 	}
 
-	/** Returns null. */
-	public Object[] getImageArray() {
-		return null;
+	/**
+	 * Follow a dataset that is extended while it is shown, e.g. by an acquisition writing the file
+	 * with single-writer/multiple-reader (SWMR) access. The extent of the dataset is refreshed
+	 * periodically - this costs one metadata call and does not access the rest of the file.
+	 * The file should be opened with HDF5Constants.H5F_ACC_SWMR_READ.
+	 * @param interval	Refresh interval in milliseconds
+	 * @param listener	Called (on the refresh thread) with the new number of slices whenever the size of the stack changed
+	 */
+	public synchronized void follow(long interval, IntConsumer listener) {
+		if (!(dataset instanceof H5ScalarDS)) {
+			logger.warning("Dataset " + dataset.getFullName() + " cannot be refreshed");
+			return;
+		}
+		stopFollowing();
+		logger.info("Refreshing dataset " + dataset.getFullName() + " every " + interval + " ms");
+		follower = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "HDF5 live refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		follower.scheduleWithFixedDelay(() -> {
+			int size = refresh();
+			if (size >= 0) {
+				listener.accept(size);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 	}
 
-	/** Does nothing. */
-	public void setSliceLabel(String label, int n) {
+	/**
+	 * Stop refreshing the extent of the dataset
+	 */
+	public synchronized void stopFollowing() {
+		if (follower != null) {
+			follower.shutdownNow();
+			follower = null;
+		}
 	}
 
-	/** Always return true. */
-	public boolean isVirtual() {
-		return true;
+	/**
+	 * Refresh the extent of the dataset from the file
+	 * @return	New number of slices or -1 if the number of slices did not change
+	 */
+	public int refresh() {
+		int before;
+		int after;
+		// The read session is shared with the prefetcher threads
+		synchronized (dataset) {
+			before = getSize();
+			try {
+				if (session == null) {
+					session = ((H5ScalarDS) dataset).openReadSession(chunkCacheSize);
+				}
+				session.refresh();
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to refresh dataset " + dataset.getFullName(), e);
+				return -1;
+			}
+			after = getSize();
+		}
+		if (after == before) {
+			return -1;
+		}
+		logger.fine("Number of slices changed from " + before + " to " + after);
+		getPrefetcher().setNumberOfSlices(after);
+		return after;
 	}
 
-	/** Does nothing. */
-	public void trim() {
+	/**
+	 * Returns the size of the innermost leading dimension of the region (e.g. the number of
+	 * z slices of a 4D dataset) - the dimension slabs are read along.
+	 */
+	private int getDepth() {
+		return (int) crop.getCount(dataset.getDims(), nLeading)[nLeading - 1];
 	}
 
 	/**
@@ -161,14 +353,18 @@ public class VirtualStackHDF5 extends ImageStack {
 	/**
 	 * Close HDF5 file
 	 */
-	public void close() {		
-		logger.info("Closing HDF5 file");
-		try{
-			file.close();
-		}
-		catch(Exception e){
-			logger.log(Level.WARNING, "Unable to close HDF5 file", e);
+	public void close() {
+		stopFollowing();
+		super.close();
+	}
+
+	protected void closeFiles() {
+		synchronized (dataset) {
+			if (session != null) {
+				session.close();
+				session = null;
+			}
 		}
-		
+		close(file);
 	}
 }
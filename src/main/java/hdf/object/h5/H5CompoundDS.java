@@ -224,11 +224,14 @@ public class H5CompoundDS extends CompoundDS {
         log.trace("close(): start");
 
         if (did >= 0) {
-            try {
-                H5.H5Fflush(did, HDF5Constants.H5F_SCOPE_LOCAL);
-            }
-            catch (Exception ex) {
-                log.debug("close(): H5Fflush(did {}) failure: ", did, ex);
+            // nothing to flush if the file is opened read-only
+            if ((fileFormat == null) || !fileFormat.isReadOnly()) {
+                try {
+                    H5.H5Fflush(did, HDF5Constants.H5F_SCOPE_LOCAL);
+                }
+                catch (Exception ex) {
+                    log.debug("close(): H5Fflush(did {}) failure: ", did, ex);
+                }
             }
             try {
                 H5.H5Dclose(did);
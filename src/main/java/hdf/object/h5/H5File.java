@@ -1943,7 +1943,7 @@ public class H5File extends FileFormat {
             return;
         }
 
-        depth_first(g, Integer.MIN_VALUE);
+        depth_first(g, Integer.MIN_VALUE, true);
     }
 
     /*
@@ -2182,6 +2182,48 @@ public class H5File extends FileFormat {
         return open(true, plist);
     }
 
+    /**
+     * Opens the file without loading the hierarchy of the file into memory.
+     * <p>
+     * Only an empty root group is created. The members of a group are loaded on demand by
+     * {@link #loadMembers(Group)}, so opening a file takes time proportional to the part of
+     * the file that is actually accessed, not to the size of the file.
+     *
+     * @return the file identifier if successful; otherwise returns negative value.
+     *
+     * @throws Exception
+     *            If there is a failure.
+     */
+    public long openLazy() throws Exception {
+        log.trace("openLazy()");
+        long the_fid = open(false);
+
+        if ((the_fid >= 0) && (rootObject == null)) {
+            rootObject = new H5Group(this, "/", null, null);
+        }
+
+        return the_fid;
+    }
+
+    /**
+     * Loads the direct members of a group into memory. Sub groups are added to the member
+     * list of the group, but their members are not loaded.
+     *
+     * @param group
+     *            the group to load the members of
+     */
+    public void loadMembers(Group group) {
+        log.trace("loadMembers({}): start", group);
+        if (fid < 0) {
+            log.debug("loadMembers(): Invalid FID");
+            return;
+        }
+
+        group.clear();
+        depth_first(group, 0, false);
+        log.trace("loadMembers({}): finish", group);
+    }
+
     /***************************************************************************
      * Private methods.
      **************************************************************************/
@@ -2372,7 +2414,7 @@ public class H5File extends FileFormat {
          */
         rootObject = new H5Group(this, "/", null, null);
         log.trace("loadIntoMemory(): depth_first on root");
-        depth_first(rootObject, 0);
+        depth_first(rootObject, 0, true);
         log.trace("loadIntoMemory(): finish");
     }
 
@@ -2385,9 +2427,11 @@ public class H5File extends FileFormat {
      *
      * @param parentObject
      *            the parent object.
+     * @param recursive
+     *            if false, only the direct members of the parent object are retrieved.
      */
     @SuppressWarnings("deprecation")
-    private int depth_first(HObject parentObject, int nTotal) {
+    private int depth_first(HObject parentObject, int nTotal, boolean recursive) {
         log.trace("depth_first({}): start", parentObject);
 
         int nelems;
@@ -2495,8 +2539,8 @@ public class H5File extends FileFormat {
 
                 // recursively go through the next group
                 // stops if it has loop.
-                if (!hasLoop) {
-                    nTotal = depth_first(g, nTotal);
+                if (recursive && !hasLoop) {
+                    nTotal = depth_first(g, nTotal, true);
                 }
             }
             else if (skipLoad) {
@@ -2835,7 +2879,7 @@ public class H5File extends FileFormat {
             }
 
             group = new H5Group(dstGroup.getFileFormat(), dstName, path, dstGroup);
-            depth_first(group, Integer.MIN_VALUE); // reload all
+            depth_first(group, Integer.MIN_VALUE, true); // reload all
             dstGroup.addToMemberList(group);
         }
 
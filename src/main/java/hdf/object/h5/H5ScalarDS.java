@@ -16,6 +16,7 @@ package hdf.object.h5;
 
 import java.lang.reflect.Array;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 
@@ -49,6 +50,11 @@ public class H5ScalarDS extends ScalarDS {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(H5ScalarDS.class);
 
+    /**
+     * Number of hash table slots of chunk caches set up for read sessions (a prime number).
+     */
+    private static final long CHUNK_CACHE_SLOTS = 10007;
+
     /**
      * The list of attributes of this data object. Members of the list are instance of Attribute.
      */
@@ -167,11 +173,14 @@ public class H5ScalarDS extends ScalarDS {
         log.trace("close(): start");
 
         if (did >= 0) {
-            try {
-                H5.H5Fflush(did, HDF5Constants.H5F_SCOPE_LOCAL);
-            }
-            catch (Exception ex) {
-                log.debug("close(): H5Fflush(did {}) failure: ", did, ex);
+            // nothing to flush if the file is opened read-only
+            if ((fileFormat == null) || !fileFormat.isReadOnly()) {
+                try {
+                    H5.H5Fflush(did, HDF5Constants.H5F_SCOPE_LOCAL);
+                }
+                catch (Exception ex) {
+                    log.debug("close(): H5Fflush(did {}) failure: ", did, ex);
+                }
             }
             try {
                 H5.H5Dclose(did);
@@ -1620,6 +1629,45 @@ public class H5ScalarDS extends ScalarDS {
      */
     public static Dataset create(String name, Group pgroup, Datatype type, long[] dims, long[] maxdims,
             long[] chunks, int gzip, Object fillValue, Object data) throws Exception {
+        return create(name, pgroup, type, dims, maxdims, chunks, gzip, false, fillValue, data);
+    }
+
+    /**
+     * Creates a scalar dataset in a file with/without chunking and compression, optionally applying the
+     * shuffle filter before compression.
+     * <p>
+     * The shuffle filter reorders the bytes of the data elements so that bytes of equal significance are
+     * stored together, which usually improves the compression ratio of multi-byte data.
+     *
+     * @param name
+     *            the name of the dataset to create.
+     * @param pgroup
+     *            parent group where the new dataset is created.
+     * @param type
+     *            the datatype of the dataset.
+     * @param dims
+     *            the dimension size of the dataset.
+     * @param maxdims
+     *            the max dimension size of the dataset. maxdims is set to dims if maxdims = null.
+     * @param chunks
+     *            the chunk size of the dataset. No chunking if chunk = null.
+     * @param gzip
+     *            GZIP compression level (1 to 9). No compression if gzip&lt;=0.
+     * @param shuffle
+     *            apply the shuffle filter. Only applied to compressed datasets.
+     * @param fillValue
+     *            the default data value.
+     * @param data
+     *            the array of data values.
+     *
+     * @return the new scalar dataset if successful; otherwise returns null.
+     *
+     * @throws Exception if there is a failure.
+     *
+     * @see #create(String, Group, Datatype, long[], long[], long[], int, Object, Object)
+     */
+    public static Dataset create(String name, Group pgroup, Datatype type, long[] dims, long[] maxdims,
+            long[] chunks, int gzip, boolean shuffle, Object fillValue, Object data) throws Exception {
         log.trace("create(): start");
 
         H5ScalarDS dataset = null;
@@ -1715,6 +1763,10 @@ public class H5ScalarDS extends ScalarDS {
 
                         // compression requires chunking
                         if (gzip > 0) {
+                            // the shuffle filter has to be applied before the compression
+                            if (shuffle) {
+                                H5.H5Pset_shuffle(plist);
+                            }
                             H5.H5Pset_deflate(plist, gzip);
                         }
                     }
@@ -2406,6 +2458,358 @@ public class H5ScalarDS extends ScalarDS {
         return refbuf;
     }
 
+    /**
+     * Opens a read session on this dataset.
+     * <p>
+     * A read session keeps the dataset identifier, the native datatype and the file and
+     * memory dataspaces open across multiple hyperslab reads. Repeated reads of the same
+     * shape only move the hyperslab selection, instead of opening and closing all
+     * identifiers on every read as {@link #read()} does. Only numeric datasets are
+     * supported. The session must be closed after use.
+     *
+     * <pre>
+     * try (H5ScalarDS.ReadSession session = dset.openReadSession()) {
+     *     for (long i = 0; i &lt; n; i++) {
+     *         Object data = session.read(new long[] { i, 0, 0 }, new long[] { 1, height, width });
+     *     }
+     * }
+     * </pre>
+     *
+     * @return the read session
+     *
+     * @throws Exception
+     *             if the dataset cannot be opened or its datatype is not supported
+     */
+    public ReadSession openReadSession() throws Exception {
+        return openReadSession(0);
+    }
+
+    /**
+     * Opens a read session on this dataset with a chunk cache of the given size.
+     * <p>
+     * The chunk cache of the HDF5 library holds decompressed chunks. By default it is 1MB, so chunks
+     * that are bigger are decompressed again for every read touching them. Sizing the cache to hold
+     * all chunks intersecting a selection avoids this when consecutive reads select parts of the
+     * same chunks (e.g. single slices of a dataset chunked along several slices).
+     *
+     * @param chunkCacheSize
+     *            the size of the chunk cache in bytes, or 0 for the default chunk cache
+     *
+     * @return the read session
+     *
+     * @throws Exception
+     *             if the dataset cannot be opened or its datatype is not supported
+     *
+     * @see #openReadSession()
+     */
+    public ReadSession openReadSession(long chunkCacheSize) throws Exception {
+        if (!isInited())
+            init();
+
+        return new ReadSession(chunkCacheSize);
+    }
+
+    /**
+     * Opens the dataset with a chunk cache of the given size.
+     *
+     * @param chunkCacheSize
+     *            the size of the chunk cache in bytes
+     *
+     * @return the dataset identifier if successful; otherwise returns a negative value.
+     */
+    private long open(long chunkCacheSize) {
+        log.trace("open(): chunkCacheSize={}", chunkCacheSize);
+        long did = -1;
+        long dapl = -1;
+
+        try {
+            dapl = H5.H5Pcreate(HDF5Constants.H5P_DATASET_ACCESS);
+            // evict fully read chunks first
+            H5.H5Pset_chunk_cache(dapl, CHUNK_CACHE_SLOTS, chunkCacheSize, 1.0);
+            did = H5.H5Dopen(getFID(), getPath() + getName(), dapl);
+            log.trace("open(): did={}", did);
+        }
+        catch (HDF5Exception ex) {
+            log.debug("open(): Failed to open dataset {}", getPath() + getName(), ex);
+            did = -1;
+        }
+        finally {
+            if (dapl >= 0) {
+                try {
+                    H5.H5Pclose(dapl);
+                }
+                catch (HDF5Exception ex) {
+                    log.debug("open(): H5Pclose(dapl {}) failure: ", dapl, ex);
+                }
+            }
+        }
+
+        return did;
+    }
+
+    /**
+     * Opens a write session on this dataset.
+     * <p>
+     * A write session keeps the dataset identifier, the native datatype and the file and
+     * memory dataspaces open across multiple hyperslab writes, like a read session does
+     * for reads. Only numeric datasets are supported. The data is written as is, i.e.
+     * without any conversion of unsigned values. The session must be closed after use.
+     *
+     * @return the write session
+     *
+     * @throws Exception
+     *             if the dataset cannot be opened or its datatype is not supported
+     *
+     * @see #openReadSession()
+     */
+    public WriteSession openWriteSession() throws Exception {
+        if (!isInited())
+            init();
+
+        return new WriteSession();
+    }
+
+    /**
+     * Keeps the identifiers of a dataset open for repeated hyperslab selections.
+     */
+    private abstract class Session implements AutoCloseable {
+        protected final H5Datatype dsDatatype;
+        protected long did = -1;
+        protected long tid = -1;
+        protected long fspace = -1;
+        protected long mspace = -1;
+        private long[] mspaceDims = null;
+
+        private Session(long chunkCacheSize) throws Exception {
+            log.trace("Session(): start");
+
+            dsDatatype = (H5Datatype) getDatatype();
+            if (dsDatatype.isVLEN() || dsDatatype.isText() || dsDatatype.isEnum() || dsDatatype.isRefObj()
+                    || dsDatatype.isRegRef() || dsDatatype.isCompound()) {
+                log.debug("Session(): unsupported datatype");
+                throw new HDF5Exception("Sessions only support numeric datasets");
+            }
+
+            did = (chunkCacheSize > 0) ? open(chunkCacheSize) : open();
+            if (did < 0) {
+                log.debug("Session(): failed to open dataset");
+                throw new HDF5Exception("Failed to open dataset " + getFullName());
+            }
+
+            try {
+                tid = dsDatatype.createNative();
+                fspace = H5.H5Dget_space(did);
+            }
+            catch (Exception ex) {
+                log.debug("Session(): failure: ", ex);
+                close();
+                throw ex;
+            }
+
+            log.trace("Session(): did={} tid={} fspace={}", did, tid, fspace);
+        }
+
+        /**
+         * Selects a hyperslab in the file dataspace and prepares a matching memory dataspace.
+         *
+         * @return the number of points selected
+         */
+        protected int select(long[] start, long[] stride, long[] count) throws Exception {
+            if (did < 0)
+                throw new HDF5Exception("Session is closed");
+
+            long npoints = 1;
+            for (long c : count)
+                npoints *= c;
+
+            if (npoints <= 0)
+                throw new HDF5Exception("The selected subset is empty.");
+            if (npoints > Integer.MAX_VALUE)
+                throw new HDF5Exception("Invalid int size");
+
+            // only recreate the memory dataspace if the shape of the selection changed
+            if (!Arrays.equals(count, mspaceDims)) {
+                if (mspace >= 0) {
+                    H5.H5Sclose(mspace);
+                    mspace = -1;
+                }
+                mspace = H5.H5Screate_simple(count.length, count, null);
+                mspaceDims = count.clone();
+            }
+
+            H5.H5Sselect_hyperslab(fspace, HDF5Constants.H5S_SELECT_SET, start, stride, count, null);
+
+            return (int) npoints;
+        }
+
+        /**
+         * Closes all identifiers held by the session.
+         */
+        @Override
+        public void close() {
+            log.trace("Session.close(): start");
+
+            if (mspace >= 0) {
+                try {
+                    H5.H5Sclose(mspace);
+                }
+                catch (Exception ex) {
+                    log.debug("Session.close(): H5Sclose(mspace {}) failure: ", mspace, ex);
+                }
+                mspace = -1;
+            }
+
+            if (fspace >= 0) {
+                try {
+                    H5.H5Sclose(fspace);
+                }
+                catch (Exception ex) {
+                    log.debug("Session.close(): H5Sclose(fspace {}) failure: ", fspace, ex);
+                }
+                fspace = -1;
+            }
+
+            dsDatatype.close(tid);
+            tid = -1;
+
+            H5ScalarDS.this.close(did);
+            did = -1;
+
+            log.trace("Session.close(): finish");
+        }
+    }
+
+    /**
+     * Keeps the identifiers of a dataset open for repeated hyperslab reads.
+     *
+     * @see H5ScalarDS#openReadSession()
+     */
+    public class ReadSession extends Session {
+
+        private ReadSession(long chunkCacheSize) throws Exception {
+            super(chunkCacheSize);
+        }
+
+        /**
+         * Reads a hyperslab of the dataset.
+         *
+         * @param start
+         *            the offset of the hyperslab
+         * @param count
+         *            the number of elements to read in each dimension
+         *
+         * @return the data read
+         *
+         * @throws Exception
+         *             if there is an error at the HDF5 library level
+         */
+        public Object read(long[] start, long[] count) throws Exception {
+            return read(start, null, count);
+        }
+
+        /**
+         * Reads a strided hyperslab of the dataset.
+         *
+         * @param start
+         *            the offset of the hyperslab
+         * @param stride
+         *            the stride of the hyperslab or null for a stride of 1
+         * @param count
+         *            the number of elements to read in each dimension
+         *
+         * @return the data read
+         *
+         * @throws Exception
+         *             if there is an error at the HDF5 library level
+         */
+        public Object read(long[] start, long[] stride, long[] count) throws Exception {
+            int npoints = select(start, stride, count);
+
+            Object data = null;
+            try {
+                data = H5Datatype.allocateArray(dsDatatype, npoints);
+            }
+            catch (OutOfMemoryError err) {
+                log.debug("ReadSession.read(): Out of memory");
+                throw new HDF5Exception("Out Of Memory");
+            }
+
+            try {
+                H5.H5Dread(did, tid, mspace, fspace, HDF5Constants.H5P_DEFAULT, data);
+            }
+            catch (HDF5DataFiltersException exfltr) {
+                log.debug("ReadSession.read(): read failure: ", exfltr);
+                throw new Exception("Filter not available exception: " + exfltr.getMessage(), exfltr);
+            }
+
+            return data;
+        }
+
+        /**
+         * Refreshes the metadata of the dataset from the file and updates the dimensions of the dataset, e.g. for a
+         * dataset that is extended by another process writing the file with single-writer/multiple-reader (SWMR)
+         * access. The file should be opened with HDF5Constants.H5F_ACC_SWMR_READ.
+         *
+         * @return the current dimensions of the dataset
+         *
+         * @throws Exception
+         *             if there is an error at the HDF5 library level
+         */
+        public long[] refresh() throws Exception {
+            if (did < 0)
+                throw new HDF5Exception("Session is closed");
+
+            H5.H5Drefresh(did);
+
+            // the extent of the file dataspace may have changed
+            H5.H5Sclose(fspace);
+            fspace = -1;
+            fspace = H5.H5Dget_space(did);
+
+            long[] current = new long[rank];
+            H5.H5Sget_simple_extent_dims(fspace, current, null);
+            if (!Arrays.equals(current, dims)) {
+                log.trace("ReadSession.refresh(): dims changed to {}", Arrays.toString(current));
+                dims = current;
+            }
+
+            return current.clone();
+        }
+    }
+
+    /**
+     * Keeps the identifiers of a dataset open for repeated hyperslab writes.
+     *
+     * @see H5ScalarDS#openWriteSession()
+     */
+    public class WriteSession extends Session {
+
+        private WriteSession() throws Exception {
+            super(0);
+        }
+
+        /**
+         * Writes a hyperslab of the dataset.
+         *
+         * @param start
+         *            the offset of the hyperslab
+         * @param count
+         *            the number of elements to write in each dimension
+         * @param data
+         *            the data to write, holding exactly the number of selected elements
+         *
+         * @throws Exception
+         *             if there is an error at the HDF5 library level
+         */
+        public void write(long[] start, long[] count, Object data) throws Exception {
+            int npoints = select(start, null, count);
+            if (Array.getLength(data) != npoints)
+                throw new HDF5Exception("Size of the data does not match the selection");
+
+            H5.H5Dwrite(did, tid, mspace, fspace, HDF5Constants.H5P_DEFAULT, data);
+        }
+    }
+
     /**
      * H5Dset_extent verifies that the dataset is at least of size size, extending it if necessary. The dimensionality
      * of size is the same as that of the dataspace of the dataset being changed.
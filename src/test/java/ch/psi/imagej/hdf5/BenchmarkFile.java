@@ -0,0 +1,86 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import hdf.object.Dataset;
+import hdf.object.Datatype;
+import hdf.object.FileFormat;
+import hdf.object.Group;
+import hdf.object.h5.H5Datatype;
+import hdf.object.h5.H5File;
+
+/**
+ * Test file and main loop shared by the benchmarks. The file holds unsigned 16 bit datasets
+ * that are written slice by slice along their first dimension.
+ */
+class BenchmarkFile {
+
+	/**
+	 * Create the file of a benchmark
+	 * @param args			Arguments of the benchmark - the optional first argument is the file to use
+	 * @param prefix		Prefix of the temporary file used otherwise
+	 * @param names			Names of the datasets
+	 * @param dimensions	Dimensions of the datasets
+	 * @return	Created file (deleted on exit)
+	 */
+	static File create(String[] args, String prefix, String[] names, long[][] dimensions) throws Exception {
+		File f = args.length > 0 ? new File(args[0]) : File.createTempFile(prefix, ".h5");
+		f.deleteOnExit();
+
+		FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+		H5File file = (H5File) fileFormat.createFile(f.getAbsolutePath(), FileFormat.FILE_CREATE_DELETE);
+		file.open();
+		try {
+			Datatype type = new H5Datatype(Datatype.CLASS_INTEGER, 2, Datatype.NATIVE, Datatype.SIGN_NONE);
+			Group root = (Group) file.getRootObject();
+			for (int i = 0; i < names.length; i++) {
+				writeSlices(file.createScalarDS(names[i], root, type, dimensions[i], dimensions[i], null, 0, null), dimensions[i]);
+			}
+		} finally {
+			file.close();
+		}
+		return f;
+	}
+
+	private static void writeSlices(Dataset dataset, long[] dimensions) throws Exception {
+		dataset.init();
+		long[] selected = dataset.getSelectedDims();
+		selected[0] = 1;
+		long[] start = dataset.getStartDims();
+		int size = 1;
+		for (int i = 1; i < dimensions.length; i++) {
+			size *= dimensions[i];
+		}
+		short[] slice = new short[size];
+		for (int i = 0; i < dimensions[0]; i++) {
+			start[0] = i;
+			for (int j = 0; j < slice.length; j++) {
+				slice[j] = (short) (i + j);
+			}
+			dataset.write(slice);
+		}
+	}
+
+	/**
+	 * Open a dataset of the file
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends Dataset> T get(H5File file, String name) throws Exception {
+		Dataset dataset = (Dataset) file.get(name);
+		dataset.init();
+		return (T) dataset;
+	}
+
+	/**
+	 * Run the rounds of a benchmark after one warm up round
+	 * @param rounds	Number of rounds
+	 * @param round		Round of the benchmark returning the line to print
+	 */
+	static void run(int rounds, Callable<String> round) throws Exception {
+		round.call();
+		for (int i = 0; i < rounds; i++) {
+			System.out.println(round.call());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BinningTest {
+
+	@Test
+	public void testBin() {
+		// 5x2 plane - the last column is dropped
+		short[] pixels = new short[] { 1, 3, 10, 20, 7, 5, 7, 30, 40, 7 };
+		assertArrayEquals(new short[] { 4, 25 }, (short[]) Binning.bin(pixels, 5, 2, 2));
+
+		// Unsigned bytes
+		byte[] bytes = new byte[] { (byte) 200, (byte) 250, (byte) 210, (byte) 240 };
+		assertArrayEquals(new byte[] { (byte) 225 }, (byte[]) Binning.bin(bytes, 2, 2, 2));
+
+		float[] floats = new float[] { 1, 2, 3, 4 };
+		assertArrayEquals(new float[] { 2.5f }, (float[]) Binning.bin(floats, 2, 2, 2), 0);
+	}
+
+	@Test
+	public void testExpand() {
+		short[] pixels = new short[] { 1, 2, 3, 4 };
+		short[] expanded = (short[]) Binning.expand(pixels, 2, 2, 2, 5, 4);
+		assertArrayEquals(new short[] {
+				1, 1, 2, 2, 2,
+				1, 1, 2, 2, 2,
+				3, 3, 4, 4, 4,
+				3, 3, 4, 4, 4 }, expanded);
+	}
+
+	@Test
+	public void testAccumulate() {
+		// Two 2x2 planes binned 2x2x2
+		short[] first = new short[] { 1, 2, 3, 4 };
+		short[] second = new short[] { 5, 6, 7, 100 };
+
+		double[] values = Binning.newAccumulator(1, Binning.MEAN);
+		Binning.accumulate(first, 2, 2, 2, values, Binning.MEAN);
+		Binning.accumulate(second, 2, 2, 2, values, Binning.MEAN);
+		assertArrayEquals(new short[] { 16 }, (short[]) Binning.reduce(first, values, 8, Binning.MEAN));
+		assertArrayEquals(new float[] { 128 }, (float[]) Binning.reduce(first, values, 8, Binning.SUM), 0);
+
+		values = Binning.newAccumulator(1, Binning.MAX);
+		Binning.accumulate(first, 2, 2, 2, values, Binning.MAX);
+		Binning.accumulate(second, 2, 2, 2, values, Binning.MAX);
+		assertArrayEquals(new short[] { 100 }, (short[]) Binning.reduce(first, values, 8, Binning.MAX));
+	}
+
+	@Test
+	public void testPyramidLevels() {
+		assertEquals(0, HDF5Pyramid.getNumberOfLevels(300, 200));
+		assertEquals(3, HDF5Pyramid.getNumberOfLevels(2048, 1024));
+		assertEquals("/entry/data_pyramid/level2", HDF5Pyramid.getLevelName("/entry/data", 2));
+	}
+}
@@ -0,0 +1,57 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CropTest {
+
+	@Test
+	public void testRegion() {
+		long[] dimensions = new long[] { 100, 200, 300 };
+
+		Crop full = new Crop();
+		assertTrue(full.isFull());
+		assertArrayEquals(new long[] { 0, 0, 0 }, full.getStart(dimensions, 1));
+		assertArrayEquals(dimensions, full.getCount(dimensions, 1));
+
+		Crop crop = new Crop(10, 20, 30, 40, 5, 14);
+		assertFalse(crop.isFull());
+		assertArrayEquals(new long[] { 5, 20, 10 }, crop.getStart(dimensions, 1));
+		assertArrayEquals(new long[] { 10, 40, 30 }, crop.getCount(dimensions, 1));
+
+		// Leading (t) and trailing (rgb) dimensions are not cropped
+		long[] rgb = new long[] { 4, 100, 200, 300, 3 };
+		assertArrayEquals(new long[] { 0, 5, 20, 10, 0 }, crop.getStart(rgb, 2));
+		assertArrayEquals(new long[] { 4, 10, 40, 30, 3 }, crop.getCount(rgb, 2));
+	}
+
+	@Test
+	public void testClip() {
+		long[] dimensions = new long[] { 100, 200, 300 };
+		Crop crop = new Crop(290, 150, 100, 0, 90, 200);
+		assertArrayEquals(new long[] { 90, 150, 290 }, crop.getStart(dimensions, 1));
+		assertArrayEquals(new long[] { 10, 50, 10 }, crop.getCount(dimensions, 1));
+
+		// 2D datasets have no slice range
+		assertArrayEquals(new long[] { 50, 10 }, crop.getCount(new long[] { 200, 300 }, 0));
+	}
+
+	@Test
+	public void testParse() {
+		assertNull(Crop.parse(HDF5Reader.parseArguments("dataset=/data")));
+		Crop crop = Crop.parse(HDF5Reader.parseArguments("dataset=/data x=10 width=30 zend=4"));
+		assertArrayEquals(new long[] { 0, 0, 10 }, crop.getStart(new long[] { 100, 200, 300 }, 1));
+		assertArrayEquals(new long[] { 5, 200, 30 }, crop.getCount(new long[] { 100, 200, 300 }, 1));
+	}
+
+	@Test
+	public void testParseInvalid() {
+		try {
+			Crop.parse(HDF5Reader.parseArguments("dataset=/data x=10 width=abc"));
+			fail("Invalid width accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("width=abc"));
+		}
+	}
+}
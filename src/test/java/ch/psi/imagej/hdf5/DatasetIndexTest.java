@@ -0,0 +1,69 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatasetIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteRead() throws Exception {
+		File file = folder.newFile("test.h5");
+		File indexFile = DatasetIndex.getIndexFile(folder.getRoot(), file);
+
+		List<DatasetIndex.Entry> entries = new ArrayList<>();
+		entries.add(new DatasetIndex.Entry("/entry/data/data", new long[] { 100, 512, 256 }, "16-bit unsigned integer", new long[] { 1, 512, 256 }, "GZIP: level = 4"));
+		entries.add(new DatasetIndex.Entry("/image", new long[] { 512, 256 }, "32-bit floating-point", null, ""));
+		new DatasetIndex(entries).write(indexFile, file);
+
+		DatasetIndex index = DatasetIndex.read(indexFile, file);
+		assertNotNull(index);
+		assertEquals(2, index.getEntries().size());
+
+		DatasetIndex.Entry entry = index.getEntries().get(0);
+		assertEquals("/entry/data/data", entry.getFullName());
+		assertEquals(3, entry.getRank());
+		assertArrayEquals(new long[] { 100, 512, 256 }, entry.getDims());
+		assertEquals("16-bit unsigned integer", entry.getDatatype());
+		assertArrayEquals(new long[] { 1, 512, 256 }, entry.getChunks());
+		assertEquals("GZIP: level = 4", entry.getCompression());
+
+		entry = index.getEntries().get(1);
+		assertEquals(2, entry.getRank());
+		assertNull(entry.getChunks());
+		assertEquals("", entry.getCompression());
+	}
+
+	@Test
+	public void testOutOfDate() throws Exception {
+		File file = folder.newFile("test.h5");
+		File indexFile = DatasetIndex.getIndexFile(folder.getRoot(), file);
+
+		List<DatasetIndex.Entry> entries = new ArrayList<>();
+		entries.add(new DatasetIndex.Entry("/image", new long[] { 512, 256 }, "8-bit unsigned integer", null, ""));
+		new DatasetIndex(entries).write(indexFile, file);
+		assertNotNull(DatasetIndex.read(indexFile, file));
+
+		// Index of a different file
+		assertNull(DatasetIndex.read(indexFile, folder.newFile("other.h5")));
+
+		// File was modified
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(new byte[16]);
+		}
+		assertNull(DatasetIndex.read(indexFile, file));
+
+		// No index
+		assertNull(DatasetIndex.read(new File(folder.getRoot(), "missing.index"), file));
+	}
+}
@@ -0,0 +1,100 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HDF5ProjectionTest {
+
+	// Dataset [2][2][3]
+	private static final short[] DATA = new short[] {
+			1, 2, 3,
+			4, 5, 6,
+
+			7, 8, 9,
+			10, 11, 12 };
+
+	@Test
+	public void testProjectZ() {
+		// Slices added in two slabs
+		HDF5Projection.Accumulator accumulator = new HDF5Projection.Accumulator(0, 2, 2, 3);
+		accumulator.add(new short[] { 1, 2, 3, 4, 5, 6 }, 0, 1);
+		accumulator.add(new short[] { 7, 8, 9, 10, 11, 12 }, 1, 1);
+
+		assertEquals(3, accumulator.get(HDF5Projection.MAX).getWidth());
+		assertEquals(2, accumulator.get(HDF5Projection.MAX).getHeight());
+		assertArrayEquals(new float[] { 7, 8, 9, 10, 11, 12 }, (float[]) accumulator.get(HDF5Projection.MAX).getPixels(), 0);
+		assertArrayEquals(new float[] { 1, 2, 3, 4, 5, 6 }, (float[]) accumulator.get(HDF5Projection.MIN).getPixels(), 0);
+		assertArrayEquals(new float[] { 4, 5, 6, 7, 8, 9 }, (float[]) accumulator.get(HDF5Projection.MEAN).getPixels(), 0);
+		assertArrayEquals(new float[] { 3, 3, 3, 3, 3, 3 }, (float[]) accumulator.get(HDF5Projection.STD).getPixels(), 1e-6f);
+	}
+
+	@Test
+	public void testProjectYX() {
+		// XZ image - one row per slice
+		HDF5Projection.Accumulator accumulator = new HDF5Projection.Accumulator(1, 2, 2, 3);
+		accumulator.add(DATA, 0, 2);
+		assertArrayEquals(new float[] { 5, 7, 9, 17, 19, 21 }, (float[]) accumulator.get(HDF5Projection.SUM).getPixels(), 0);
+
+		// YZ image - one row per slice
+		accumulator = new HDF5Projection.Accumulator(2, 2, 2, 3);
+		accumulator.add(DATA, 0, 2);
+		assertEquals(2, accumulator.get(HDF5Projection.MAX).getWidth());
+		assertArrayEquals(new float[] { 3, 6, 9, 12 }, (float[]) accumulator.get(HDF5Projection.MAX).getPixels(), 0);
+	}
+
+	@Test
+	public void testStdLargeOffset() {
+		// Values with a large offset - the variance would cancel out with sum of squares - mean^2
+		float offset = 1e9f;
+		float[] slices = new float[] { offset, offset + 64, offset + 128, offset + 192 };
+		double expected = 64 * Math.sqrt(1.25);
+
+		// Two workers accumulating two slices each
+		String[] types = new String[] { HDF5Projection.STD };
+		HDF5Projection.Accumulator accumulator = new HDF5Projection.Accumulator(0, 4, 1, 1, types);
+		accumulator.add(new float[] { slices[0], slices[1] }, 0, 2);
+		HDF5Projection.Accumulator other = new HDF5Projection.Accumulator(0, 4, 1, 1, types);
+		other.add(new float[] { slices[2] }, 2, 1);
+		other.add(new float[] { slices[3] }, 3, 1);
+		accumulator.merge(other);
+		assertEquals(expected, accumulator.get(HDF5Projection.STD).getf(0), 1e-3);
+
+		// Projection along x - all values of a pixel in one row
+		accumulator = new HDF5Projection.Accumulator(2, 1, 1, 4, types);
+		accumulator.add(slices, 0, 1);
+		assertEquals(expected, accumulator.get(HDF5Projection.STD).getf(0), 1e-3);
+	}
+
+	@Test
+	public void testRequestedTypesOnly() {
+		HDF5Projection.Accumulator accumulator = new HDF5Projection.Accumulator(0, 2, 2, 3, new String[] { HDF5Projection.MAX });
+		accumulator.add(DATA, 0, 2);
+		assertArrayEquals(new float[] { 7, 8, 9, 10, 11, 12 }, (float[]) accumulator.get(HDF5Projection.MAX).getPixels(), 0);
+		try {
+			accumulator.get(HDF5Projection.MEAN);
+			fail("Projection that was not requested returned");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(4, HDF5Projection.Accumulator.getBytesPerPixel(new String[] { HDF5Projection.MAX }));
+		assertEquals(24, HDF5Projection.Accumulator.getBytesPerPixel(HDF5Projection.TYPES));
+	}
+
+	@Test
+	public void testCheckTypes() {
+		HDF5Projection.checkTypes(new String[] { HDF5Projection.MAX, HDF5Projection.STD });
+		try {
+			HDF5Projection.checkTypes(new String[] { HDF5Projection.MAX, "median" });
+			fail("Unknown projection accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("median"));
+		}
+		try {
+			HDF5Projection.checkTypes(new String[0]);
+			fail("Empty selection accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
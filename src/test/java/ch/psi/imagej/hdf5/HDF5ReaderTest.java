@@ -2,6 +2,10 @@ package ch.psi.imagej.hdf5;
 
 import org.junit.Test;
 
+import hdf.object.FileFormat;
+import hdf.object.h5.H5File;
+
+import java.io.File;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -19,4 +23,22 @@ public class HDF5ReaderTest {
         assertTrue(map.get("PARA").equals("VAL"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void openLiveWithoutSWMR() throws Exception {
+        // Files are created with the earliest file format - no SWMR access possible
+        File f = File.createTempFile("live", ".h5");
+        f.deleteOnExit();
+        FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+        fileFormat.createFile(f.getAbsolutePath(), FileFormat.FILE_CREATE_DELETE).close();
+
+        DatasetSelection selection = new DatasetSelection();
+        selection.setLive(true);
+        H5File file = HDF5Reader.openLive(f.getAbsolutePath(), selection);
+        try {
+            assertFalse(selection.isLive());
+        } finally {
+            file.close();
+        }
+    }
+
+}
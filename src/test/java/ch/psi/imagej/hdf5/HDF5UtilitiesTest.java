@@ -23,6 +23,27 @@ public class HDF5UtilitiesTest {
 		assertEquals(gdescriptor, "three");
 	}
 
+	@Test
+	public void testGetChannel() {
+		short[] rgb = new short[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+		assertArrayEquals(new short[] { 1, 4, 7, 10 }, (short[]) HDF5Utilities.getChannel(rgb, 0, 4, 0, 3));
+		assertArrayEquals(new short[] { 3, 6, 9, 12 }, (short[]) HDF5Utilities.getChannel(rgb, 0, 4, 2, 3));
+		assertArrayEquals(new short[] { 8, 11 }, (short[]) HDF5Utilities.getChannel(rgb, 6, 2, 1, 3));
+	}
+
+	@Test
+	public void testHyperstackIndex() {
+		// 2 frames, 3 channels, 4 slices
+		// Plane (t=0, c=1, z=2) is slice (c=1, z=2, t=0)
+		assertEquals(7, HDF5Utilities.getStackIndex(6, 3, 4));
+		assertEquals(6, HDF5Utilities.getPlaneIndex(7, 3, 4));
+		// Plane (t=1, c=2, z=3) is the last slice
+		assertEquals(23, HDF5Utilities.getStackIndex(23, 3, 4));
+		for (int i = 0; i < 24; i++) {
+			assertEquals(i, HDF5Utilities.getPlaneIndex(HDF5Utilities.getStackIndex(i, 3, 4), 3, 4));
+		}
+	}
+
 
 	@Test
 	public void testOpen() {
@@ -0,0 +1,33 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HDF5WriterTest {
+
+	@Test
+	public void testChunksNone() {
+		assertNull(HDF5Writer.getChunks(new long[] { 100, 512, 256 }, HDF5Writer.CHUNKING_NONE, 0, false));
+		// Compressed datasets need to be chunked
+		assertArrayEquals(new long[] { 1, 512, 256 }, HDF5Writer.getChunks(new long[] { 100, 512, 256 }, HDF5Writer.CHUNKING_NONE, 4, false));
+	}
+
+	@Test
+	public void testChunksSlice() {
+		assertArrayEquals(new long[] { 1, 512, 256 }, HDF5Writer.getChunks(new long[] { 100, 512, 256 }, HDF5Writer.CHUNKING_SLICE, 0, false));
+		assertArrayEquals(new long[] { 512, 256 }, HDF5Writer.getChunks(new long[] { 512, 256 }, HDF5Writer.CHUNKING_SLICE, 0, false));
+		assertArrayEquals(new long[] { 1, 512, 256, 3 }, HDF5Writer.getChunks(new long[] { 100, 512, 256, 3 }, HDF5Writer.CHUNKING_SLICE, 0, true));
+		// Hyperstack (t, c, z, y, x)
+		assertArrayEquals(new long[] { 1, 1, 1, 512, 256 }, HDF5Writer.getChunks(new long[] { 5, 2, 100, 512, 256 }, HDF5Writer.CHUNKING_SLICE, 0, false));
+	}
+
+	@Test
+	public void testChunksCube() {
+		assertArrayEquals(new long[] { 64, 64, 64 }, HDF5Writer.getChunks(new long[] { 100, 512, 256 }, HDF5Writer.CHUNKING_CUBE, 0, false));
+		assertArrayEquals(new long[] { 10, 64, 32 }, HDF5Writer.getChunks(new long[] { 10, 512, 32 }, HDF5Writer.CHUNKING_CUBE, 0, false));
+		assertArrayEquals(new long[] { 64, 64, 64, 3 }, HDF5Writer.getChunks(new long[] { 100, 512, 256, 3 }, HDF5Writer.CHUNKING_CUBE, 0, true));
+		assertArrayEquals(new long[] { 64, 64 }, HDF5Writer.getChunks(new long[] { 512, 256 }, HDF5Writer.CHUNKING_CUBE, 0, false));
+		assertArrayEquals(new long[] { 1, 1, 64, 64, 64 }, HDF5Writer.getChunks(new long[] { 5, 2, 100, 512, 256 }, HDF5Writer.CHUNKING_CUBE, 0, false));
+	}
+}
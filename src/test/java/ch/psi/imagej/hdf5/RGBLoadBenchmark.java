@@ -0,0 +1,55 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.File;
+
+import hdf.object.h5.H5File;
+import hdf.object.h5.H5ScalarDS;
+import ij.Prefs;
+
+/**
+ * Compares the throughput of loading an RGB stack with the one of loading a grayscale
+ * stack of the same size in bytes. Both are read with the SlabReader as done by the
+ * non-virtual load of the HDF5Reader.
+ *
+ * Usage: RGBLoadBenchmark [file]
+ */
+public class RGBLoadBenchmark {
+
+	private static final int SLICES = 300;
+	private static final int ROWS = 512;
+	private static final int COLUMNS = 512;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		// Grayscale stack with three times the slices of the RGB stack
+		File f = BenchmarkFile.create(args, "rgb-load-benchmark", new String[] { "gray", "rgb" },
+				new long[][] { { 3 * SLICES, ROWS, COLUMNS }, { SLICES, ROWS, COLUMNS, 3 } });
+
+		H5File file = new H5File(f.getAbsolutePath(), H5File.READ);
+		file.open();
+		try {
+			H5ScalarDS gray = BenchmarkFile.get(file, "/gray");
+			H5ScalarDS rgb = BenchmarkFile.get(file, "/rgb");
+
+			double megabytes = 3.0 * SLICES * ROWS * COLUMNS * 2 / 1024 / 1024;
+			BenchmarkFile.run(ROUNDS, () -> {
+				long timeGray = read(gray, false);
+				long timeRGB = read(rgb, true);
+				return String.format("grayscale: %.1f MB/s   rgb: %.1f MB/s",
+						megabytes / (timeGray / 1e9), megabytes / (timeRGB / 1e9));
+			});
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read all slices of the dataset
+	 * @return	Elapsed time in nanoseconds
+	 */
+	private static long read(H5ScalarDS dataset, boolean rgb) throws Exception {
+		long begin = System.nanoTime();
+		new SlabReader(dataset, rgb, Prefs.getThreads()).read();
+		return System.nanoTime() - begin;
+	}
+}
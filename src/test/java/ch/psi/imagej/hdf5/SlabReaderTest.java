@@ -0,0 +1,29 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SlabReaderTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testSlabDepthNotChunked() {
+		// 1MB slices - 16 slices per slab
+		assertEquals(16, SlabReader.getSlabDepth(null, MB, 1000, 4));
+		// Small datasets are spread over all threads
+		assertEquals(25, SlabReader.getSlabDepth(null, 1024, 100, 4));
+		// Slices bigger than a slab
+		assertEquals(1, SlabReader.getSlabDepth(null, 64 * MB, 1000, 4));
+	}
+
+	@Test
+	public void testSlabDepthChunked() {
+		// Slabs are multiples of the chunk depth
+		assertEquals(12, SlabReader.getSlabDepth(new long[] { 6, 1024, 1024 }, MB, 1000, 4));
+		assertEquals(32, SlabReader.getSlabDepth(new long[] { 32, 256, 256 }, MB, 1000, 4));
+		// Single chunk covering the whole dataset
+		assertEquals(10, SlabReader.getSlabDepth(new long[] { 64, 256, 256 }, MB, 10, 4));
+	}
+}
@@ -0,0 +1,51 @@
+package ch.psi.imagej.hdf5;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SliceCacheTest {
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		SliceCache cache = new SliceCache(300);
+		cache.put(1, new byte[100]);
+		cache.put(2, new byte[100]);
+		cache.put(3, new byte[100]);
+
+		// Access slice 1 so that slice 2 becomes the least recently used one
+		assertNotNull(cache.get(1));
+		cache.put(4, new byte[100]);
+
+		assertTrue(cache.contains(1));
+		assertFalse(cache.contains(2));
+		assertTrue(cache.contains(3));
+		assertTrue(cache.contains(4));
+		assertEquals(300, cache.getSize());
+	}
+
+	@Test
+	public void testBudgetInBytes() {
+		SliceCache cache = new SliceCache(1000);
+		cache.put(1, new short[200]);
+		cache.put(2, new float[200]);
+		assertEquals(1, cache.getNumberOfSlices());
+		assertEquals(800, cache.getSize());
+
+		// Slices bigger than the whole budget are not cached
+		cache.put(3, new double[200]);
+		assertFalse(cache.contains(3));
+		assertTrue(cache.contains(2));
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		SliceCache cache = new SliceCache(1000);
+		assertNull(cache.get(1));
+		cache.put(1, new byte[10]);
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(1));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+}
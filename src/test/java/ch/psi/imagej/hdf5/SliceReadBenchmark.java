@@ -0,0 +1,63 @@
+package ch.psi.imagej.hdf5;
+
+import java.io.File;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.object.Dataset;
+import hdf.object.h5.H5File;
+
+/**
+ * Measures the per-slice latency of single slice reads (as done by the virtual stack)
+ * on a 1000 slice dataset. The reads are done once as is and once with an additional
+ * H5Fflush per read, which is what closing a dataset did for read-only files before.
+ *
+ * Usage: SliceReadBenchmark [file]
+ */
+public class SliceReadBenchmark {
+
+	private static final int SLICES = 1000;
+	private static final int ROWS = 128;
+	private static final int COLUMNS = 128;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		File f = BenchmarkFile.create(args, "slice-read-benchmark", new String[] { "data" }, new long[][] { { SLICES, ROWS, COLUMNS } });
+
+		H5File file = new H5File(f.getAbsolutePath(), H5File.READ);
+		file.open();
+		try {
+			Dataset dataset = BenchmarkFile.get(file, "/data");
+			BenchmarkFile.run(ROUNDS, () -> {
+				long withoutFlush = readSlices(dataset, false);
+				long withFlush = readSlices(dataset, true);
+				return String.format("read-only close: %.1f us/slice   close with flush: %.1f us/slice",
+						withoutFlush / 1e3 / SLICES, withFlush / 1e3 / SLICES);
+			});
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read all slices of the dataset one by one
+	 * @return	Elapsed time in nanoseconds
+	 */
+	private static long readSlices(Dataset dataset, boolean flush) throws Exception {
+		long[] selected = dataset.getSelectedDims();
+		selected[0] = 1;
+		selected[1] = ROWS;
+		selected[2] = COLUMNS;
+		long[] start = dataset.getStartDims();
+
+		long begin = System.nanoTime();
+		for (int i = 0; i < SLICES; i++) {
+			start[0] = i;
+			dataset.read();
+			if (flush) {
+				H5.H5Fflush(dataset.getFID(), HDF5Constants.H5F_SCOPE_LOCAL);
+			}
+		}
+		return System.nanoTime() - begin;
+	}
+}